@@ -0,0 +1,80 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A pool of byte buffers of the same capacity, so that buffers used for a short while (e.g., to hold a query until it
+ * is answered) can be reused instead of being allocated for every message. Buffers may be direct, in which case
+ * channels can send and receive them without copying them to a temporary buffer of their own.
+ * <p>
+ * The pool is lock-free, and doesn't allocate: it is a fixed array of slots, and buffers are taken from and returned
+ * to the slots with compare-and-set, starting at a random slot so that threads don't all compete for the same ones.
+ * A buffer is allocated when the pool is empty, and dropped when it is returned to a full pool, so the pool never
+ * holds more than its size, and buffers that are not returned are simply garbage collected.
+ */
+final class BufferPool {
+
+    private final AtomicReferenceArray<ByteBuffer> slots;
+    private final int capacity;
+    private final boolean direct;
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param size     The maximum number of buffers kept in the pool.
+     * @param capacity The capacity of each buffer, in bytes.
+     * @param direct   Whether the buffers are direct buffers.
+     */
+    BufferPool(int size, int capacity, boolean direct) {
+        this.slots = new AtomicReferenceArray<>(size);
+        this.capacity = capacity;
+        this.direct = direct;
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates a new one if the pool is empty.
+     *
+     * @return A cleared buffer.
+     */
+    ByteBuffer acquire() {
+        int size = slots.length();
+        int start = ThreadLocalRandom.current().nextInt(size);
+        for (int i = 0; i < size; i++) {
+            int slot = (start + i) % size;
+            ByteBuffer buffer = slots.get(slot);
+            if (buffer != null && slots.compareAndSet(slot, buffer, null)) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used afterwards.
+     *
+     * @param buffer A buffer taken from this pool.
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer.capacity() != capacity || buffer.isDirect() != direct) return;
+        int size = slots.length();
+        int start = ThreadLocalRandom.current().nextInt(size);
+        for (int i = 0; i < size; i++) {
+            int slot = (start + i) % size;
+            if (slots.get(slot) == null && slots.compareAndSet(slot, null, buffer)) return;
+        }
+    }
+
+    /**
+     * @return The number of buffers currently in the pool.
+     */
+    int available() {
+        int count = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) != null) count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,81 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing how well the DNS cache is working. Counters are striped (LongAdder), so updating them from many
+ * threads at once does not cause contention; reading them sums the stripes, so it is more expensive and meant to be
+ * done only occasionally, e.g., when printing the statistics.
+ */
+public class CacheStatistics {
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder cnameHits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder expiredRecords = new LongAdder();
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    void recordCNameHit() {
+        cnameHits.increment();
+    }
+
+    void recordNegativeHit() {
+        negativeHits.increment();
+    }
+
+    void recordExpirations(int count) {
+        expiredRecords.add(count);
+    }
+
+    /**
+     * @return The number of calls to getCachedResults that returned at least one record.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of calls to getCachedResults that returned no records.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The fraction of calls to getCachedResults that returned at least one record, or 0 if there were none.
+     */
+    public double getHitRatio() {
+        long hits = getHitCount();
+        long total = hits + getMissCount();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    /**
+     * @return The number of hits that included records found by following a cached CNAME record.
+     */
+    public long getCNameHitCount() {
+        return cnameHits.sum();
+    }
+
+    /**
+     * @return The number of questions answered by a cached negative answer (NXDOMAIN or NODATA).
+     */
+    public long getNegativeHitCount() {
+        return negativeHits.sum();
+    }
+
+    /**
+     * @return The number of records removed from the cache because they expired.
+     */
+    public long getExpiredRecordCount() {
+        return expiredRecords.sum();
+    }
+}
@@ -3,15 +3,53 @@ package ca.ubc.cs.cs317.dnslookup;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
  * This class handles a cache of DNS results. It is based on a map that links questions to a set of resource
  * records (results). Cached results are only maintained for the duration of the TTL (time-to-live) returned by the
- * server.  Expired entries are removed each time the cache is accessed.
+ * server. Expired records are never returned, and they are removed from the cache as their expiration time is
+ * reached, using an index of cached questions ordered by expiration time.
+ * <p>
+ * The cache is safe to use from many threads at once. The map is a ConcurrentHashMap, which locks individual bins
+ * (selected by the question's hash) for updates and never locks for reads. Each question maps to an immutable RRSet,
+ * so an update replaces the whole set atomically and readers always see either the old or the new set.
+ * <p>
+ * By default the cache is unbounded. A capacity, in records or in estimated bytes, can be set with setCapacity, in
+ * which case entries are evicted according to an EvictionPolicy that favours frequently used names. The root hints
+ * and any question protected with protect() are never evicted.
+ * <p>
+ * Negative answers (names that don't exist, or have no records of a type) are cached for the TTL given by the SOA
+ * record that came with them, so that repeated lookups for them don't reach the network.
+ * <p>
+ * NS records are also indexed in a ZoneCutTrie, which finds the deepest known delegation for a name in one walk over
+ * its labels.
+ * <p>
+ * If prefetching is enabled, popular entries that are read close to their expiration time are handed to a prefetch
+ * handler, which is expected to resolve them again in the background. The cached records keep being returned until
+ * the new ones replace them.
+ * <p>
+ * A stale window can also be set, in which case expired records are kept for that long after they expire. They are
+ * never returned as regular results, but they can be obtained with getStaleResults, to be served when no nameserver
+ * can provide fresh ones (RFC 8767).
  */
 public class DNSCache {
 
+    /**
+     * The unit used to measure the capacity of the cache.
+     */
+    public enum CapacityUnit { RECORDS, BYTES }
+
+    /**
+     * The kinds of negative answers that can be cached (RFC 2308): the name does not exist at all (NXDOMAIN), or it
+     * exists but has no records of the requested type (NODATA).
+     */
+    public enum NegativeResult { NXDOMAIN, NODATA }
+
     public static final DNSQuestion rootQuestion = NSQuestion("");
     private static final String[][] rootServers = {
             { "a.root-servers.net", "198.41.0.4" },
@@ -28,9 +66,24 @@ public class DNSCache {
             { "l.root-servers.net", "199.7.83.42" },
             { "m.root-servers.net", "202.12.27.33" }
     };
-    private static final Set<ResourceRecord> rootNameServersSet = new HashSet<>();
+    private static final int CONCURRENCY_LEVEL = 64;
+    private static final int ESTIMATED_BYTES_PER_ENTRY = 256;
     private static final DNSCache instance = new DNSCache();
-    private final Map<DNSQuestion, Set<ResourceRecord>> cachedResults = new HashMap<>();
+    private final ConcurrentMap<DNSQuestion, RRSet> cachedResults =
+            new ConcurrentHashMap<>(1024, 0.75f, CONCURRENCY_LEVEL);
+    private final ExpiryIndex expiryIndex = new ExpiryIndex();
+    private volatile ZoneCutTrie zoneCuts = new ZoneCutTrie();
+    private volatile RRSet rootNameServers = RRSet.EMPTY;
+    private volatile Set<DNSQuestion> rootHints = Collections.emptySet();
+    private volatile EvictionPolicy policy;
+    private volatile CapacityUnit capacityUnit = CapacityUnit.RECORDS;
+    private volatile Prefetch prefetch;
+    private volatile long staleWindow;
+    private final ConcurrentMap<DNSQuestion, Long> pendingPrefetches = new ConcurrentHashMap<>();
+    private final CacheStatistics statistics = new CacheStatistics();
+    private final LongAdder prefetchesIssued = new LongAdder();
+    private final LongAdder prefetchesInTime = new LongAdder();
+    private final LongAdder prefetchesWasted = new LongAdder();
 
     private DNSCache() {
         reset();
@@ -53,108 +106,192 @@ public class DNSCache {
         reset(rootServers);
     }
 
-    public void reset(String[] ... nameservers) {
-        cachedResults.clear();
-        this.cachedResults.put(rootQuestion, rootNameServersSet);
-        rootNameServersSet.clear();
+    /**
+     * Resets the cache so it contains only the given root nameservers. Each nameserver is given as a pair of strings
+     * containing its name and the dotted-decimal representation of its IPv4 address.
+     *
+     * @param nameservers Root nameservers to be used as the starting point of every lookup.
+     */
+    public synchronized void reset(String[] ... nameservers) {
+        RRSet roots = RRSet.EMPTY;
+        Map<DNSQuestion, RRSet> glue = new HashMap<>();
+        Set<DNSQuestion> hints = new HashSet<>();
+        hints.add(rootQuestion);
         for (String[] nameserver : nameservers) {
             String name = nameserver[0];
             String ipAddress = nameserver[1];
             InetAddress address = stringToInetAddress(ipAddress);
-            ResourceRecord rr = new ResourceRecord(rootQuestion, Integer.MAX_VALUE, name);
-            rootNameServersSet.add(rr);
+            roots = roots.withRecord(new ResourceRecord(rootQuestion, Integer.MAX_VALUE, name));
             DNSQuestion q = AQuestion(name);
-            rr = new ResourceRecord(AQuestion(name), Integer.MAX_VALUE, address);
-            Set<ResourceRecord> value = new HashSet<>();
-            value.add(rr);
-            this.cachedResults.put(q, value);
+            hints.add(q);
+            glue.merge(q, RRSet.EMPTY.withRecord(new ResourceRecord(q, Integer.MAX_VALUE, address)),
+                    (a, b) -> a.withRecord(b.records[0]));
+        }
+        // Publish the new root hints first, so getBestNameservers always has a non-empty fallback while the
+        // map itself is being cleared and refilled.
+        rootNameServers = roots;
+        rootHints = hints;
+        cachedResults.clear();
+        expiryIndex.clear();
+        pendingPrefetches.clear();
+        zoneCuts = new ZoneCutTrie();
+        zoneCuts.set(rootQuestion, roots);
+        if (policy != null) {
+            policy = newPolicy(policy.getMaximumWeight(), capacityUnit);
         }
+        cachedResults.put(rootQuestion, roots);
+        scheduleExpiration(rootQuestion, roots);
+        glue.forEach((question, records) -> {
+            cachedResults.put(question, records);
+            scheduleExpiration(question, records);
+        });
     }
 
     /**
      * Returns a set of resource records already cached for a particular query. If no results are cached for the
-     * specified query, returns an empty set. Expired results are removed from the cache before being returned. This
+     * specified query, returns an empty set. Expired results are never returned. This
      * method does not perform the query itself, it only returns previously cached results. Results are returned in
-     * random order.
+     * round-robin order: each call starts at a different record of the set.
+     * <p>
+     * The list returned is an unmodifiable view of the cached records. If the name has no cached CNAME records, the
+     * records are not copied.
      *
      * @param question     DNS query (host name/type/class) for the results to be obtained.
      * @return A potentially empty set of resources associated to the query.
      */
     public List<ResourceRecord> getCachedResults(DNSQuestion question) {
-        List<ResourceRecord> ans = new ArrayList<>();
-        pruneExpired();
-        Set<ResourceRecord> results = cachedResults.get(question);
-        if (results != null) {
-            ans.addAll(results);
-        }
+        expireDue(false);
+        List<ResourceRecord> ans = liveResults(question);
 
         // Include in the results any records we have for the canonical name (if any)
-        results = cachedResults.get(new DNSQuestion(question.getHostName(), RecordType.CNAME, question.getRecordClass()));
-        if (results != null) {
-            for (ResourceRecord r : results) {
-                DNSQuestion aquestion = new DNSQuestion(r.getTextResult(), RecordType.A, r.getRecordClass());
-                Set<ResourceRecord> arecords = cachedResults.get(aquestion);
-                if (!ans.contains(r)) ans.add(r);
-                if (arecords != null) {
-                    for (ResourceRecord rr : arecords) {
-                        if (!ans.contains(rr)) ans.add(rr);
-                    }
+        RRSet cnames = cachedResults.get(new DNSQuestion(question.getHostName(), RecordType.CNAME, question.getRecordClass()));
+        if (cnames != null && cnames.negative == null) {
+            List<ResourceRecord> aliases = cnames.liveView();
+            if (!aliases.isEmpty()) {
+                List<ResourceRecord> merged = withCanonicalNames(question, ans, aliases);
+                if (merged.size() > ans.size()) {
+                    statistics.recordHit();
+                    statistics.recordCNameHit();
+                    return merged;
                 }
             }
         }
 
-        Collections.shuffle(ans);
+        if (ans.isEmpty()) statistics.recordMiss();
+        else statistics.recordHit();
         return ans;
     }
 
+    /**
+     * Returns a view of the live records cached for a question, without following CNAME records. The use is recorded
+     * by the eviction policy, and may trigger a prefetch.
+     */
+    private List<ResourceRecord> liveResults(DNSQuestion question) {
+        RRSet results = lookup(question);
+        if (results == null) return Collections.emptyList();
+        List<ResourceRecord> live = results.liveView();
+        Prefetch prefetch = this.prefetch;
+        if (prefetch != null && !live.isEmpty()) {
+            prefetch.check(question, results);
+        }
+        return live;
+    }
+
+    /**
+     * Merges the records cached for a question with the CNAME records of its name and the A records cached for the
+     * canonical names. Records in different RRsets are never equal, so the only duplicates that can occur are the
+     * CNAME records themselves (when the question is for CNAME records) and canonical names listed twice, and these
+     * are skipped without searching the results.
+     */
+    private List<ResourceRecord> withCanonicalNames(DNSQuestion question, List<ResourceRecord> direct,
+                                                    List<ResourceRecord> aliases) {
+        boolean includeAliases = question.getRecordType() != RecordType.CNAME;
+        RRSet[] targets = new RRSet[aliases.size()];
+        int size = direct.size() + (includeAliases ? aliases.size() : 0);
+        for (int i = 0; i < targets.length; i++) {
+            ResourceRecord alias = aliases.get(i);
+            DNSQuestion target = new DNSQuestion(alias.getTextResult(), RecordType.A, alias.getRecordClass());
+            if (target.equals(question) || isRepeatedTarget(aliases, i)) continue;
+            targets[i] = cachedResults.get(target);
+            if (targets[i] != null) size += targets[i].records.length;
+        }
+        ResourceRecord[] merged = new ResourceRecord[size];
+        int count = 0;
+        for (ResourceRecord record : direct) merged[count++] = record;
+        for (int i = 0; i < targets.length; i++) {
+            if (includeAliases) merged[count++] = aliases.get(i);
+            if (targets[i] == null) continue;
+            for (ResourceRecord record : targets[i].liveView()) {
+                if (count == merged.length) break; // The target was replaced by a larger set in the meantime
+                merged[count++] = record;
+            }
+        }
+        return new RecordView(count == merged.length ? merged : Arrays.copyOf(merged, count), 0);
+    }
+
+    private static boolean isRepeatedTarget(List<ResourceRecord> aliases, int index) {
+        String target = aliases.get(index).getTextResult();
+        for (int i = 0; i < index; i++) {
+            if (aliases.get(i).getTextResult().equals(target)) return true;
+        }
+        return false;
+    }
+
     /**
      * Returns a set of resource records for the best nameservers to query for a given question.
      * Will never return an empty set since the root nameservers are always candidates if no better
-     * nameserver can be found.
+     * nameserver can be found. Nameservers are returned in round-robin order, as an unmodifiable view.
      *
      * @param question      DNS query (host name/type/class) for which a nameserver is desired.
      * @return              A non-empty set of NS resources that are the best ones to answer this query.
      */
     public List<ResourceRecord> getBestNameservers(DNSQuestion question) {
-        List<ResourceRecord> returningList = new ArrayList<>();
-        pruneExpired();
-        for (String suffix : new Suffixes(question.getHostName())) {
-            DNSQuestion nsquestion = new DNSQuestion(suffix, RecordType.NS, RecordClass.IN);
-            List<ResourceRecord> nslist = getCachedResults(nsquestion);
-            if (!nslist.isEmpty()) {
-                returningList.addAll(nslist);
-                break;
-            }
+        expireDue(false);
+        ZoneCutTrie.Node zone = zoneCuts.findDeepest(question.getHostName());
+        RRSet nameservers = zone == null ? null : zone.records;
+        if (nameservers != null) {
+            List<ResourceRecord> live = nameservers.liveView();
+            EvictionPolicy policy = this.policy;
+            if (policy != null) policy.recordRead(zone.question);
+            if (!live.isEmpty()) return live;
         }
-        Collections.shuffle(returningList);
-        return returningList;
+        // The root entry may be missing for a moment while another thread resets the cache
+        return rootNameServers.liveView();
     }
 
     /**
      * Returns a collection of A resource records for the subset of the provided nameservers
      * for which IPV4 addresses are known.
      * The result collection may be empty if none of the provided nameservers have a known IP address.
+     * Addresses are listed in the order of the nameservers, and the addresses of each nameserver are in round-robin
+     * order.
      *
      * @param servers     Collection of nameservers (NS records)
      * @return A collection of A records providing the IP addresses of those servers for whom
      * the IP address is known.
      */
     public List<ResourceRecord> filterByKnownIPAddress(Collection<ResourceRecord> servers) {
-        List<ResourceRecord> returningList = new ArrayList<>();
-        pruneExpired();
+        expireDue(false);
+        List<ResourceRecord> single = Collections.emptyList();
+        List<ResourceRecord> returningList = null;
         for (ResourceRecord server : servers) {
-            String host = server.getTextResult();
-            DNSQuestion question = AQuestion(host);
-            List<ResourceRecord> alist = getCachedResults(question);
-            returningList.addAll(alist);
+            List<ResourceRecord> alist = liveResults(AQuestion(server.getTextResult()));
+            if (alist.isEmpty()) continue;
+            // Only copy the addresses if more than one nameserver has some
+            if (single.isEmpty()) {
+                single = alist;
+            } else {
+                if (returningList == null) returningList = new ArrayList<>(single);
+                returningList.addAll(alist);
+            }
         }
-        Collections.shuffle(returningList);
-        return returningList;
+        return returningList == null ? single : Collections.unmodifiableList(returningList);
     }
 
     /**
      * Adds a specific resource record to the DNS cache. If the cache already has an equivalent resource record, the
-     * existing record is updated if the new one expires after the existing record.
+     * existing record is updated if the new one expires after the existing record. The set of records for the
+     * question is replaced atomically, so concurrent readers never observe a partially updated set.
      *
      * @param record Resource record, possibly obtained from a DNS server, containing the result of a DNS query.
      */
@@ -162,14 +299,303 @@ public class DNSCache {
 
         if (record.isExpired()) return;
 
-        Set<ResourceRecord> results = cachedResults.computeIfAbsent(record.getQuestion(), q -> new HashSet<>());
+        RRSet[] previous = new RRSet[1];
+        List<Map<DNSQuestion, RRSet>> evicted = new ArrayList<>(1);
+        RRSet updated = cachedResults.compute(record.getQuestion(), (question, results) -> {
+            previous[0] = results;
+            RRSet set = (results == null ? RRSet.EMPTY : results).withRecord(record);
+            indexZoneCut(question, set);
+            if (set != results) recordWrite(question, set, evicted);
+            return set;
+        });
+        retire(previous[0], updated);
+        // Scheduled outside of compute(), since the expiry index calls back into the map while holding its own lock
+        if (previous[0] == null || previous[0].earliestExpiration != updated.earliestExpiration) {
+            scheduleExpiration(record.getQuestion(), updated);
+        }
+        removeEvicted(evicted);
+    }
+
+    /**
+     * Adds a negative answer to the cache: the question's name does not exist, or it has no records of the question's
+     * type. The answer is kept for the TTL of the SOA record provided, which should already have been computed as the
+     * minimum of the SOA's own TTL and its MINIMUM field. Any records cached for the question are replaced.
+     *
+     * @param question The question that has a negative answer.
+     * @param soa      The SOA record from the authority section of the response, with the negative TTL.
+     * @param result   The kind of negative answer.
+     */
+    public void addNegativeResult(DNSQuestion question, ResourceRecord soa, NegativeResult result) {
+
+        if (soa.isExpired()) return;
+
+        RRSet negative = RRSet.negative(soa, result);
+        RRSet[] previousSet = new RRSet[1];
+        List<Map<DNSQuestion, RRSet>> evicted = new ArrayList<>(1);
+        cachedResults.compute(question, (q, results) -> {
+            previousSet[0] = results;
+            indexZoneCut(q, negative);
+            recordWrite(q, negative, evicted);
+            return negative;
+        });
+        RRSet previous = previousSet[0];
+        retire(previous, negative);
+        if (previous == null || previous.earliestExpiration != negative.earliestExpiration) {
+            scheduleExpiration(question, negative);
+        }
+        removeEvicted(evicted);
+    }
+
+    /**
+     * Returns the negative answer cached for a question, if any. A negative answer means that a nameserver stated
+     * that the name does not exist, or that it has no records of the question's type.
+     *
+     * @param question DNS query (host name/type/class) to be checked.
+     * @return The kind of negative answer cached for the question, or null if there is none.
+     */
+    public NegativeResult getNegativeResult(DNSQuestion question) {
+        RRSet results = lookup(question);
+        NegativeResult negative = results == null ? null : results.getNegativeResult();
+        if (negative != null) statistics.recordNegativeHit();
+        return negative;
+    }
+
+    /**
+     * Returns the records cached for a question that have expired but are still within the stale window. They are
+     * returned as new records with a TTL of staleTTL seconds, as they should only be used for a short time. Records
+     * that have not expired are not included, since they are returned by getCachedResults.
+     *
+     * @param question DNS query (host name/type/class) for the results to be obtained.
+     * @param staleTTL The TTL, in seconds, of the records returned.
+     * @return A potentially empty list of stale records for the question.
+     */
+    public List<ResourceRecord> getStaleResults(DNSQuestion question, int staleTTL) {
+        List<ResourceRecord> stale = new ArrayList<>();
+        RRSet results = cachedResults.get(question);
+        if (results == null || results.negative != null) return stale;
+        long oldest = DNSClock.now() - staleWindow;
+        for (ResourceRecord record : results.records) {
+            if (record.isExpired() && record.getExpirationTime() > oldest) {
+                stale.add(record.getInetResult() != null
+                        ? new ResourceRecord(question, staleTTL, record.getInetResult())
+                        : new ResourceRecord(question, staleTTL, record.getTextResult()));
+            }
+        }
+        return stale;
+    }
+
+    /**
+     * Sets how long expired records are kept in the cache, so they can be served when fresh records cannot be
+     * obtained. A window of zero (the default) removes records as soon as they expire.
+     *
+     * @param seconds Number of seconds to keep records after they expire.
+     */
+    public void setStaleWindow(int seconds) {
+        staleWindow = seconds * 1000L;
+    }
+
+    /**
+     * Enables refresh-ahead prefetching. When an entry has been read at least minimumHits times, and it is read again
+     * during the last percentage of its TTL, the question is passed to the handler, which should resolve it again in
+     * the background and then call prefetchCompleted. Only one prefetch is issued for a question at a time.
+     *
+     * @param percentage  Percentage of the TTL, at the end of an entry's lifetime, during which reads trigger a
+     *                    prefetch.
+     * @param minimumHits Minimum number of reads of the entry before a prefetch is triggered.
+     * @param handler     Action that starts a background resolution of a question. It must not block.
+     */
+    public void enablePrefetch(int percentage, int minimumHits, Consumer<DNSQuestion> handler) {
+        prefetch = new Prefetch(percentage, minimumHits, handler);
+    }
+
+    public void disablePrefetch() {
+        prefetch = null;
+        pendingPrefetches.clear();
+    }
+
+    /**
+     * Must be called by the prefetch handler when the background resolution of a question is done, whether it
+     * succeeded or not. Counts the prefetch as in time if new records replaced the old ones before they expired.
+     *
+     * @param question The question that was prefetched.
+     */
+    public void prefetchCompleted(DNSQuestion question) {
+        Long deadline = pendingPrefetches.remove(question);
+        if (deadline == null) return;
+        RRSet current = cachedResults.get(question);
+        if (current != null && current.negative == null && current.earliestExpiration > deadline) {
+            current.prefetched = true;
+            if (DNSClock.now() < deadline) prefetchesInTime.increment();
+        }
+    }
+
+    /**
+     * Returns the number of prefetches handed to the prefetch handler.
+     *
+     * @return The number of prefetches issued.
+     */
+    public long getPrefetchesIssued() {
+        return prefetchesIssued.sum();
+    }
+
+    /**
+     * Returns the number of prefetches that replaced the cached records before they expired.
+     *
+     * @return The number of prefetches that arrived in time.
+     */
+    public long getPrefetchesInTime() {
+        return prefetchesInTime.sum();
+    }
+
+    /**
+     * Returns the number of prefetched entries that were removed or replaced without ever being read.
+     *
+     * @return The number of wasted prefetches.
+     */
+    public long getPrefetchesWasted() {
+        return prefetchesWasted.sum();
+    }
+
+    /**
+     * Sets the maximum size of the cache. If the cache is currently larger, entries are evicted until it fits. A
+     * maximum of Long.MAX_VALUE makes the cache unbounded, which is the default.
+     *
+     * @param maximum The maximum number of records, or of estimated bytes, kept in the cache.
+     * @param unit    Indicates whether the maximum is a number of records or a number of bytes.
+     */
+    public synchronized void setCapacity(long maximum, CapacityUnit unit) {
+        if (maximum == Long.MAX_VALUE) {
+            policy = null;
+            return;
+        }
+        capacityUnit = unit;
+        policy = newPolicy(maximum, unit);
+        // Each entry is recorded from within compute(), so that a concurrent write is recorded after it
+        List<Map<DNSQuestion, RRSet>> evicted = new ArrayList<>();
+        for (DNSQuestion question : cachedResults.keySet()) {
+            cachedResults.computeIfPresent(question, (q, records) -> {
+                recordWrite(q, records, evicted);
+                return records;
+            });
+        }
+        removeEvicted(evicted);
+    }
+
+    /**
+     * Creates an eviction policy for a maximum size, with a frequency sketch sized for the number of entries expected.
+     */
+    private static EvictionPolicy newPolicy(long maximum, CapacityUnit unit) {
+        return new EvictionPolicy(maximum, unit == CapacityUnit.BYTES ? expectedEntries(maximum) : maximum);
+    }
+
+    /**
+     * Protects a set of nameservers, and the address records of each of them, from eviction while they are being
+     * used to resolve a query. Each call must be matched by a call to release with the same records.
+     *
+     * @param nameservers Collection of NS records being used.
+     */
+    public void protect(Collection<ResourceRecord> nameservers) {
+        EvictionPolicy policy = this.policy;
+        if (policy == null) return;
+        for (ResourceRecord server : nameservers) {
+            policy.pin(server.getQuestion());
+            policy.pin(AQuestion(server.getTextResult()));
+        }
+    }
+
+    /**
+     * Releases nameservers previously protected with protect, allowing them to be evicted again.
+     *
+     * @param nameservers Collection of NS records no longer being used.
+     */
+    public void release(Collection<ResourceRecord> nameservers) {
+        EvictionPolicy policy = this.policy;
+        if (policy == null) return;
+        for (ResourceRecord server : nameservers) {
+            policy.unpin(server.getQuestion());
+            policy.unpin(AQuestion(server.getTextResult()));
+        }
+    }
+
+    /**
+     * Returns the hit, miss and expiration counters of the cache. The counters are not cleared by reset.
+     *
+     * @return The statistics object of the cache.
+     */
+    public CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Returns the number of questions (RRsets, including negative answers) currently in the cache, including any
+     * expired ones that have not been removed yet.
+     *
+     * @return The number of cached questions.
+     */
+    public int getEntryCount() {
+        return cachedResults.size();
+    }
 
-        // Find a record for the same question containing the same result
-        ResourceRecord oldRecord = results.stream().filter(record::equals).findFirst().orElse(null);
-        if (oldRecord == null)
-            results.add(record);
-        else
-            oldRecord.update(record);
+    /**
+     * Returns the number of records currently in the cache, including any expired ones that have not been removed
+     * yet. This walks the whole cache, so it should only be used occasionally.
+     *
+     * @return The number of cached records.
+     */
+    public long getRecordCount() {
+        long records = 0;
+        for (RRSet set : cachedResults.values()) records += set.records.length;
+        return records;
+    }
+
+    /**
+     * Returns the number of cache entries (questions) evicted so far to keep the cache within its capacity.
+     *
+     * @return The number of evicted entries.
+     */
+    public long getEvictionCount() {
+        EvictionPolicy policy = this.policy;
+        return policy == null ? 0 : policy.getEvictionCount();
+    }
+
+    /**
+     * Returns the total size of the cache entries evicted so far, in the unit used for the capacity.
+     *
+     * @return The total weight of evicted entries.
+     */
+    public long getEvictionWeight() {
+        EvictionPolicy policy = this.policy;
+        return policy == null ? 0 : policy.getEvictionWeight();
+    }
+
+    /**
+     * Returns the current size of the cache, in the unit used for the capacity, not counting the root hints. If the
+     * cache is unbounded, returns the number of records.
+     *
+     * @return The current weight of the cache.
+     */
+    public long getWeight() {
+        EvictionPolicy policy = this.policy;
+        if (policy != null) return policy.getTotalWeight();
+        return getRecordCount();
+    }
+
+    private long weight(DNSQuestion question, RRSet records) {
+        return capacityUnit == CapacityUnit.BYTES ? records.estimatedSize(question) : records.records.length;
+    }
+
+    private static long expectedEntries(long maximumBytes) {
+        return Math.max(1, maximumBytes / ESTIMATED_BYTES_PER_ENTRY);
+    }
+
+    /**
+     * Returns the set of records cached for a question, recording the access for the eviction policy.
+     */
+    private RRSet lookup(DNSQuestion question) {
+        RRSet results = cachedResults.get(question);
+        EvictionPolicy policy = this.policy;
+        if (results != null && policy != null) policy.recordRead(question);
+        return results;
     }
 
     /**
@@ -179,7 +605,12 @@ public class DNSCache {
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachQuestion(BiConsumer<DNSQuestion, Collection<ResourceRecord>> consumer) {
-        cachedResults.forEach(consumer);
+        expireDue(true);
+        cachedResults.forEach((question, results) -> {
+            List<ResourceRecord> live = new ArrayList<>(results.records.length);
+            results.addLiveTo(live);
+            if (!live.isEmpty()) consumer.accept(question, live);
+        });
     }
 
     /**
@@ -194,66 +625,134 @@ public class DNSCache {
     }
 
     /**
-     * Remove all expired resource records from the cache.  If this results in the set of resource records
-     * associated with a question becoming empty, also remove the question from the cache.
+     * Remove expired resource records from the cache, based on the expiry index. If a stale window is set, records
+     * are only removed once they have been expired for that long. If this results in the set of
+     * resource records associated with a question becoming empty, also remove the question from the cache. Only
+     * questions whose records are actually due are visited, so the cost does not depend on the size of the cache.
+     *
+     * @param all If false, only a bounded number of questions is handled, and nothing is done if another thread is
+     *            already removing expired records.
      */
-    private void pruneExpired() {
-        Set<DNSQuestion> toRemove = new HashSet<>();
-        cachedResults.forEach((question, records) -> {
-            records.removeIf(ResourceRecord::isExpired);
-            if (records.isEmpty())
-                toRemove.add(question);
-        });
-        for (DNSQuestion question : toRemove) {
-            cachedResults.remove(question);
-        }
+    private void expireDue(boolean all) {
+        long now = DNSClock.now();
+        expiryIndex.expireDue(now, question -> {
+            RRSet[] previous = new RRSet[1];
+            EvictionPolicy policy = this.policy;
+            // An empty set is mapped to null, which removes the question altogether. The policy is updated from
+            // within computeIfPresent(), in the same order as the map.
+            RRSet live = cachedResults.computeIfPresent(question, (q, records) -> {
+                previous[0] = records;
+                RRSet set = records.withoutExpired(records.negative == null ? now - staleWindow : now);
+                if (set != records) {
+                    indexZoneCut(q, set);
+                    if (policy != null && set == null) policy.recordRemoval(q);
+                    else if (policy != null) policy.updateWeight(q, set, weight(q, set));
+                }
+                return set;
+            });
+            // The question is no longer scheduled, even if the deadline was earlier than needed
+            if (live != null) {
+                scheduleExpiration(question, live);
+            }
+            if (previous[0] != null) {
+                statistics.recordExpirations(previous[0].records.length - (live == null ? 0 : live.records.length));
+            }
+            if (live == null) retire(previous[0], null);
+        }, all);
     }
 
     /**
-     * A utility class to return all the suffixes of a given DNS name.
-     * If given www.cs.ubc.ca, the provided iterator will return:
-     *   "cs.ubc.ca"
-     *   "ubc.ca"
-     *   "ca"
-     *   ""  (the name of the root)
+     * Schedules the removal of a set's earliest record from the cache. Records in positive sets are kept for the stale
+     * window after they expire.
      */
-    private static class Suffixes implements Iterable<String> {
-        private final String string;
+    private void scheduleExpiration(DNSQuestion question, RRSet records) {
+        long deadline = records.earliestExpiration;
+        if (records.negative == null && deadline < Long.MAX_VALUE - staleWindow) deadline += staleWindow;
+        expiryIndex.schedule(question, deadline);
+    }
 
-        public Suffixes(String string) {
-            this.string = string;
+    /**
+     * The prefetching parameters. Decides, on each read of an entry, whether the entry should be prefetched.
+     */
+    private final class Prefetch {
+        final int percentage;
+        final int minimumHits;
+        final Consumer<DNSQuestion> handler;
+
+        Prefetch(int percentage, int minimumHits, Consumer<DNSQuestion> handler) {
+            this.percentage = percentage;
+            this.minimumHits = minimumHits;
+            this.handler = handler;
         }
-        private static class SuffixesIterator implements Iterator<String> {
-            private String string;
-            private boolean first = true;
 
-            public SuffixesIterator(String string) {
-                this.string = string;
-            }
+        void check(DNSQuestion question, RRSet records) {
+            if (records.recordHit() < minimumHits) return;
+            long ttl = records.earliestExpiration - records.creationTime;
+            long remaining = records.earliestExpiration - DNSClock.now();
+            if (remaining <= 0 || remaining * 100 > ttl * percentage) return;
+            if (pendingPrefetches.putIfAbsent(question, records.earliestExpiration) != null) return;
+            prefetchesIssued.increment();
+            handler.accept(question);
+        }
+    }
 
-            @Override
-            public boolean hasNext() {
-                return !string.isEmpty();
-            }
+    /**
+     * Records a write in the eviction policy, unless the question is a root hint. Must be called from within the
+     * map's compute methods, like indexZoneCut, so that the policy always holds the set currently cached for a
+     * question. The questions evicted are only removed once compute() has returned, with removeEvicted.
+     */
+    private void recordWrite(DNSQuestion question, RRSet records, List<Map<DNSQuestion, RRSet>> evicted) {
+        EvictionPolicy policy = this.policy;
+        if (policy == null || rootHints.contains(question)) return;
+        Map<DNSQuestion, RRSet> victims = policy.recordWrite(question, records, weight(question, records));
+        if (!victims.isEmpty()) evicted.add(victims);
+    }
 
-            @Override
-            public String next() {
-                if (first) {
-                    first = false;
-                    return string;
-                }
-                int firstdot = string.indexOf('.');
-                if (firstdot >= 0) {
-                    string = string.substring(firstdot + 1);
-                } else {
-                    string = "";
-                }
-                return string;
-            }
+    private void removeEvicted(List<Map<DNSQuestion, RRSet>> evicted) {
+        for (Map<DNSQuestion, RRSet> victims : evicted) victims.forEach(this::remove);
+    }
+
+    /**
+     * Removes an evicted question from the cache, and forgets its deadline in the expiry index. Nothing is removed if
+     * its records were replaced since the policy chose to evict it: the replacement was written after the eviction,
+     * and recorded by the policy as a new entry.
+     *
+     * @param question The evicted question.
+     * @param evicted  The records of the question when it was evicted.
+     */
+    private void remove(DNSQuestion question, RRSet evicted) {
+        RRSet[] previous = new RRSet[1];
+        cachedResults.computeIfPresent(question, (q, records) -> {
+            if (records != evicted) return records;
+            previous[0] = records;
+            indexZoneCut(q, null);
+            return null;
+        });
+        if (previous[0] == null) return;
+        retire(previous[0], null);
+        expiryIndex.cancel(question);
+        // The question may have been added again before its deadline was cancelled
+        RRSet current = cachedResults.get(question);
+        if (current != null) scheduleExpiration(question, current);
+    }
+
+    /**
+     * Called when a set of records is replaced or removed from the cache. A set obtained by prefetching that was never
+     * read before being replaced was a wasted prefetch.
+     */
+    private void retire(RRSet previous, RRSet replacement) {
+        if (previous != null && previous != replacement && previous.prefetched && previous.getHits() == 0) {
+            prefetchesWasted.increment();
         }
-        @Override
-        public Iterator<String> iterator() {
-            return new SuffixesIterator(string);
+    }
+
+    /**
+     * Keeps the zone cut trie in sync with the map. Must be called from within the map's compute methods, so that
+     * updates to the trie for a question happen in the same order as updates to the map.
+     */
+    private void indexZoneCut(DNSQuestion question, RRSet records) {
+        if (question.getRecordType() == RecordType.NS && question.getRecordClass() == RecordClass.IN) {
+            zoneCuts.set(question, records);
         }
     }
 
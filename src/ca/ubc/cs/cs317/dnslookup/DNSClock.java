@@ -0,0 +1,82 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/**
+ * The source of time used for record expiration and for all other timing in the cache. Times are given in
+ * milliseconds, on a scale that starts at the wall-clock time when the class was loaded.
+ * <p>
+ * The default clock is monotonic: it is based on System.nanoTime, so records don't expire early (or live longer) when
+ * the system clock is adjusted. Another clock can be installed with setClock, e.g., a ManualClock in tests, so that
+ * TTL behaviour can be checked without waiting. Since expiration times are stored as instants of the current clock,
+ * the clock should only be replaced when the cache is reset.
+ */
+public abstract class DNSClock {
+
+    /**
+     * The default clock, which follows System.nanoTime.
+     */
+    public static final DNSClock MONOTONIC = new DNSClock() {
+        private final long originMillis = System.currentTimeMillis();
+        private final long originNanos = System.nanoTime();
+
+        @Override
+        public long millis() {
+            return originMillis + (System.nanoTime() - originNanos) / 1000000;
+        }
+    };
+
+    private static volatile DNSClock clock = MONOTONIC;
+
+    /**
+     * Returns the current time according to this clock.
+     *
+     * @return The current time, in milliseconds.
+     */
+    public abstract long millis();
+
+    /**
+     * Returns the current time according to the clock in use.
+     *
+     * @return The current time, in milliseconds.
+     */
+    public static long now() {
+        return clock.millis();
+    }
+
+    public static DNSClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Replaces the clock used by the cache and by every record.
+     *
+     * @param newClock The clock to be used, or null to go back to the default monotonic clock.
+     */
+    public static void setClock(DNSClock newClock) {
+        clock = newClock == null ? MONOTONIC : newClock;
+    }
+
+    /**
+     * A clock that only moves when it is told to.
+     */
+    public static class ManualClock extends DNSClock {
+        private volatile long millis;
+
+        public ManualClock(long millis) {
+            this.millis = millis;
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+
+        /**
+         * Moves the clock forward.
+         *
+         * @param delta The number of milliseconds to move forward.
+         */
+        public synchronized void advance(long delta) {
+            millis += delta;
+        }
+    }
+}
@@ -114,12 +114,20 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
             } else if (commandArgs[0].equalsIgnoreCase("reset")) {
                 // RESET: Remove all entries from the cache
                 cache.reset();
+            } else if (commandArgs[0].equalsIgnoreCase("servers")) {
+                // SERVERS: Print the round-trip time estimates of the nameservers queried so far
+                printServers();
+            } else if (commandArgs[0].equalsIgnoreCase("stats")) {
+                // STATS: Print cache and query statistics
+                printStatistics();
             } else {
                 System.err.println("Invalid command. Valid commands are:");
                 System.err.println("\tlookup fqdn [type]");
                 System.err.println("\tverbose on|off");
                 System.err.println("\tdump");
                 System.err.println("\treset");
+                System.err.println("\tstats");
+                System.err.println("\tservers");
                 System.err.println("\tquit");
             }
 
@@ -133,6 +141,45 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
         verboseTracing = onoff;
     }
 
+    /**
+     * Prints the hit ratio and size of the cache, and the number of queries sent to nameservers.
+     */
+    private static void printStatistics() {
+        CacheStatistics statistics = cache.getStatistics();
+        System.out.printf("Cache lookups: %d hits, %d misses (hit ratio %.1f%%), %d via CNAME, %d negative\n",
+                statistics.getHitCount(), statistics.getMissCount(), statistics.getHitRatio() * 100,
+                statistics.getCNameHitCount(), statistics.getNegativeHitCount());
+        System.out.printf("Cache size: %d RRsets, %d records\n", cache.getEntryCount(), cache.getRecordCount());
+        System.out.printf("Removed: %d expired records, %d evicted RRsets\n",
+                statistics.getExpiredRecordCount(), cache.getEvictionCount());
+        System.out.printf("Prefetches: %d issued, %d in time, %d wasted\n",
+                cache.getPrefetchesIssued(), cache.getPrefetchesInTime(), cache.getPrefetchesWasted());
+        for (RecordType type : RecordType.values()) {
+            long sent = lookupService.getQueriesSent(type);
+            if (sent > 0) System.out.printf("Queries sent for %s: %d\n", type, sent);
+        }
+        System.out.printf("Resolutions: %d (%.2f queries per resolution), %d coalesced, %d hedged queries\n",
+                lookupService.getResolutionCount(), lookupService.getQueriesPerResolution(),
+                lookupService.getCoalescedCount(), lookupService.getHedgedQueryCount());
+    }
+
+    /**
+     * Prints the round-trip time estimates of the nameservers queried so far, fastest first.
+     */
+    private static void printServers() {
+        List<Map.Entry<InetAddress, ServerSelector.Estimate>> servers = new ArrayList<>();
+        lookupService.getServerSelector().forEachServer((address, estimate) ->
+                servers.add(new AbstractMap.SimpleEntry<>(address, estimate)));
+        servers.sort(Comparator.comparingLong(entry -> entry.getValue().getSmoothedRtt()));
+        System.out.printf("%-40s %8s %8s %8s %8s %8s\n", "Server", "SRTT", "RTTVAR", "Samples", "Timeouts", "Age (s)");
+        for (Map.Entry<InetAddress, ServerSelector.Estimate> entry : servers) {
+            ServerSelector.Estimate estimate = entry.getValue();
+            System.out.printf("%-40s %8d %8d %8d %8d %8d\n", entry.getKey().getHostAddress(),
+                    estimate.getSmoothedRtt(), estimate.getRttVariance(), estimate.getSampleCount(),
+                    estimate.getTimeoutCount(), estimate.getAge() / 1000);
+        }
+    }
+
     /**
      * Finds all results for a host name and type and prints them on the standard output.
      *
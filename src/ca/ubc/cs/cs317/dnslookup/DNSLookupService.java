@@ -1,26 +1,63 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
 import java.sql.SQLOutput;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 public class DNSLookupService {
 
     public static final int DEFAULT_DNS_PORT = 53;
+    private static final int MAX_INDIRECTION_LEVEL = 10;
     private static final int MAX_INDIRECTION_LEVEL_NS = 10;
     private static final int MAX_QUERY_ATTEMPTS = 3;
     private static final int MAX_DNS_MESSAGE_LENGTH = 512;
-    private static final int SO_TIMEOUT = 5000;
+    private static final int MAX_NEGATIVE_TTL = 10800;
+    private static final int STALE_TTL = 30;
+    private static final int STALE_REFRESH_INTERVAL = 30000;
+    private static final int TCP_IDLE_TIMEOUT = 10000;
+    private static final int DEFAULT_EDNS_PAYLOAD_SIZE = 1232;
+    private static final int MAX_EDNS_PAYLOAD_SIZE = 4096;
+    private static final int MAX_QUERY_TEMPLATES = 1024;
+    private static final int POOLED_QUERY_MESSAGES = 64;
+    private static final int MAX_RESOLUTION_THREADS = 256;
 
     private final DNSCache cache = DNSCache.getInstance();
-    private final Random random = new Random();
     private final DNSVerbosePrinter verbose;
-    private final DatagramSocket socket;
+    private final QueryTransport transport;
+    private final TcpConnectionPool tcpConnections;
+    private ExecutorService resolutionExecutor;
+    private ExecutorService backgroundExecutor;
+    private ScheduledExecutorService hedgeTimer;
+    private DNSLookupService backgroundService;
+    private volatile int clientDeadline = -1;
+    private volatile boolean retryOtherServers;
+    private volatile int maxHedgedQueries;
+    private volatile int ednsPayloadSize = DEFAULT_EDNS_PAYLOAD_SIZE;
+    private volatile boolean selectiveDecoding;
+    private final Map<RecordType, LongAdder> queriesSent;
+    private final LongAdder resolutions;
+    private final LongAdder coalesced;
+    private final LongAdder hedged = new LongAdder();
+    private final ConcurrentMap<DNSQuestion, Flight> inFlight;
+    private final Map<Thread, Flight> waiting;
+    private final Map<DNSQuestion, Long> staleRefreshFailures = new ConcurrentHashMap<>();
+    private final QueryTemplateCache plainQueryTemplates = templatesFor(0);
+    private volatile QueryTemplateCache ednsQueryTemplates = templatesFor(DEFAULT_EDNS_PAYLOAD_SIZE);
+    private final MessagePool queryMessages = new MessagePool(POOLED_QUERY_MESSAGES);
+    private final ConcurrentMap<DNSQuestion, Future<Collection<ResourceRecord>>> staleRefreshes =
+            new ConcurrentHashMap<>();
 
     /**
-     * Creates a new lookup service. Also initializes the datagram socket object with a default timeout.
+     * Creates a new lookup service. Also opens the datagram socket used for queries, and starts the thread that
+     * dispatches the responses received on it to the queries waiting for them. TCP connections are only opened when
+     * needed, and kept open for later queries to the same server.
      *
      * @param verbose    A DNSVerbosePrinter listener object with methods to be called at key events in the query
      *                   processing.
@@ -28,16 +65,388 @@ public class DNSLookupService {
      * @throws UnknownHostException If the nameserver is not a valid server.
      */
     public DNSLookupService(DNSVerbosePrinter verbose) throws SocketException, UnknownHostException {
+        this(verbose, new EnumMap<>(RecordType.class), new LongAdder(), new LongAdder(), new ConcurrentHashMap<>(),
+                new HashMap<>(), openTransport(), new TcpConnectionPool(TCP_IDLE_TIMEOUT));
+        for (RecordType type : RecordType.values()) {
+            queriesSent.put(type, new LongAdder());
+        }
+    }
+
+    /**
+     * Creates a new lookup service that shares its query counters, its socket and its TCP connections with another
+     * one, so that background resolutions are included in the statistics of the service that started them. It also
+     * shares the table of resolutions in flight, so that a background resolution and a foreground one of the same
+     * question are coalesced like any two resolutions of the same service.
+     */
+    private DNSLookupService(DNSVerbosePrinter verbose, Map<RecordType, LongAdder> queriesSent, LongAdder resolutions,
+                             LongAdder coalesced, ConcurrentMap<DNSQuestion, Flight> inFlight,
+                             Map<Thread, Flight> waiting, QueryTransport transport, TcpConnectionPool tcpConnections) {
         this.verbose = verbose;
-        socket = new DatagramSocket();
-        socket.setSoTimeout(SO_TIMEOUT);
+        this.queriesSent = queriesSent;
+        this.resolutions = resolutions;
+        this.coalesced = coalesced;
+        this.inFlight = inFlight;
+        this.waiting = waiting;
+        this.transport = transport;
+        this.tcpConnections = tcpConnections;
+    }
+
+    private static QueryTransport openTransport() throws SocketException {
+        try {
+            return new QueryTransport(MAX_EDNS_PAYLOAD_SIZE);
+        } catch (SocketException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new SocketException(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the number of query messages sent to nameservers for questions of the given type, including
+     * retransmissions and queries repeated over TCP.
+     *
+     * @param type The record type of the questions.
+     * @return The number of queries sent.
+     */
+    public long getQueriesSent(RecordType type) {
+        return queriesSent.get(type).sum();
+    }
+
+    /**
+     * Returns the number of questions that could not be answered from the cache and had to be resolved by querying
+     * nameservers (including questions for the addresses of nameservers).
+     *
+     * @return The number of resolutions.
+     */
+    public long getResolutionCount() {
+        return resolutions.sum();
+    }
+
+    /**
+     * Returns the number of times a question was not resolved because another thread was already resolving it, and
+     * its results were used instead.
+     *
+     * @return The number of coalesced resolutions.
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * Returns the number of queries sent to another nameserver because the one queried before was slow to answer.
+     *
+     * @return The number of hedged queries.
+     */
+    public long getHedgedQueryCount() {
+        return hedged.sum();
+    }
+
+    /**
+     * Enables or disables hedged queries. When a zone has several nameservers with known addresses and the one
+     * queried has not answered by the time it usually does, the same question is also sent to the next best
+     * nameserver, and the first response received is used. At most maxExtraQueries such queries are sent while
+     * resolving one question, so the load on nameservers stays bounded. Hedging is disabled by default.
+     *
+     * @param maxExtraQueries The maximum number of hedged queries per resolution, or 0 to disable hedging.
+     */
+    public void setHedging(int maxExtraQueries) {
+        if (maxExtraQueries < 0) throw new IllegalArgumentException("Negative number of hedged queries");
+        this.maxHedgedQueries = maxExtraQueries;
+    }
+
+    /**
+     * Sets the UDP payload size advertised in the EDNS(0) OPT record of queries (RFC 6891), which is the largest
+     * response nameservers may send over UDP before truncating it. The default of 1232 bytes avoids IP fragmentation
+     * on most paths. Servers that reject queries with an OPT record are sent plain queries instead.
+     *
+     * @param payloadSize The payload size, between 512 and 4096 bytes, or 0 to send queries without EDNS(0).
+     */
+    public void setEDNSPayloadSize(int payloadSize) {
+        if (payloadSize != 0 && (payloadSize < MAX_DNS_MESSAGE_LENGTH || payloadSize > MAX_EDNS_PAYLOAD_SIZE)) {
+            throw new IllegalArgumentException("Invalid EDNS payload size: " + payloadSize);
+        }
+        // The templates encoded with the previous size stay in the previous cache, which is no longer used
+        this.ednsQueryTemplates = payloadSize > 0 ? templatesFor(payloadSize) : plainQueryTemplates;
+        this.ednsPayloadSize = payloadSize;
+    }
+
+    /**
+     * Enables or disables selective decoding of responses. By default every record of a response is decoded, cached
+     * and returned by processResponse. With selective decoding, records are first read in place, and only those the
+     * resolution needs are decoded: once the answer section contains records of the type asked for, the authority
+     * and additional sections are skipped, and otherwise only the address records of the nameservers named in the
+     * authority section are decoded from the additional section. Skipped records are neither cached nor printed.
+     *
+     * @param selectiveDecoding Whether records that are not needed are left undecoded.
+     */
+    public void setSelectiveDecoding(boolean selectiveDecoding) {
+        this.selectiveDecoding = selectiveDecoding;
+    }
+
+    /**
+     * Selects what happens when a nameserver does not answer a query in time. By default the query is sent to the
+     * same nameserver again, up to three times, before moving on to another one. If retryOtherServers is true, an
+     * unanswered query is instead sent right away to another nameserver that can answer it; only the last
+     * nameserver left is retried.
+     *
+     * @param retryOtherServers Whether queries that time out are retried on another nameserver.
+     */
+    public void setRetryOtherServers(boolean retryOtherServers) {
+        this.retryOtherServers = retryOtherServers;
+    }
+
+    /**
+     * Returns the number of attempts to make with a nameserver, which is only one if other nameservers can be tried
+     * after it and retryOtherServers is set.
+     *
+     * @param knownIP        The A records of all the nameservers that can answer the question.
+     * @param queriedServers The addresses of the nameservers already queried.
+     * @param server         The address of the nameserver about to be queried.
+     * @return The maximum number of times the query is sent to the nameserver.
+     */
+    private int attemptsFor(List<ResourceRecord> knownIP, Set<InetAddress> queriedServers, InetAddress server) {
+        if (!retryOtherServers) return MAX_QUERY_ATTEMPTS;
+        for (ResourceRecord other : knownIP) {
+            InetAddress address = other.getInetResult();
+            if (!address.equals(server) && !queriedServers.contains(address)) return 1;
+        }
+        return MAX_QUERY_ATTEMPTS;
+    }
+
+    /**
+     * Returns the round-trip time estimates used to choose which nameserver to query.
+     *
+     * @return The server selector of this service.
+     */
+    public ServerSelector getServerSelector() {
+        return transport.getServers();
+    }
+
+    /**
+     * Returns the average number of queries sent per resolution that needed nameservers.
+     *
+     * @return The average number of queries, or 0 if no resolution was made.
+     */
+    public double getQueriesPerResolution() {
+        long count = resolutions.sum();
+        if (count == 0) return 0;
+        long queries = 0;
+        for (LongAdder sent : queriesSent.values()) queries += sent.sum();
+        return (double) queries / count;
     }
 
     /**
      * Closes the lookup service and related sockets and resources.
      */
     public void close() {
-        socket.close();
+        transport.close();
+        tcpConnections.close();
+        synchronized (this) {
+            if (resolutionExecutor != null) resolutionExecutor.shutdownNow();
+            if (hedgeTimer != null) hedgeTimer.shutdownNow();
+            if (backgroundExecutor != null) {
+                cache.disablePrefetch();
+                backgroundExecutor.shutdownNow();
+                backgroundService.close();
+            }
+        }
+    }
+
+    /**
+     * Enables refresh-ahead prefetching in the cache. Once a cached entry has been used at least minimumHits times,
+     * any use during the last percentage of its TTL starts a background resolution of the same question. Callers
+     * keep receiving the cached records until the new records replace them.
+     *
+     * @param percentage  Percentage of the TTL, at the end of an entry's lifetime, during which uses trigger a
+     *                    prefetch.
+     * @param minimumHits Minimum number of uses of the entry before a prefetch is triggered.
+     */
+    public synchronized void enablePrefetch(int percentage, int minimumHits) {
+        startBackground();
+        cache.enablePrefetch(percentage, minimumHits, this::prefetch);
+    }
+
+    public void disablePrefetch() {
+        cache.disablePrefetch();
+    }
+
+    /**
+     * Enables serving stale records (RFC 8767). Expired records are kept in the cache for staleWindow seconds. When a
+     * question has only stale records in the cache, a fresh resolution is started in the background and the caller
+     * waits for at most clientDeadline milliseconds. If the resolution fails or takes longer than that, the stale
+     * records are returned with a TTL of 30 seconds, and the resolution continues in the background. After a failed
+     * resolution, stale records are served without trying again for 30 seconds.
+     *
+     * @param staleWindow    Number of seconds to keep records after they expire.
+     * @param clientDeadline Maximum number of milliseconds to wait for a fresh answer before serving stale records.
+     */
+    public synchronized void enableServeStale(int staleWindow, int clientDeadline) {
+        startBackground();
+        cache.setStaleWindow(staleWindow);
+        this.clientDeadline = clientDeadline;
+    }
+
+    public void disableServeStale() {
+        clientDeadline = -1;
+        cache.setStaleWindow(0);
+    }
+
+    /**
+     * Creates, if needed, the lookup service and the thread used for background resolutions. Background resolutions
+     * send their queries through the same transport and TCP connections as this service, and are run one at a time on
+     * a single daemon thread, in the order in which they were requested. Their progress is not reported to the
+     * verbose printer.
+     */
+    private void startBackground() {
+        if (backgroundExecutor != null) return;
+        backgroundService = new DNSLookupService(SILENT, queriesSent, resolutions, coalesced, inFlight, waiting,
+                transport, tcpConnections);
+        backgroundExecutor = Executors.newSingleThreadExecutor(daemonThreads("DNSLookupService background resolution"));
+    }
+
+    /**
+     * Creates, if needed, the thread that sends hedged queries when their delay expires.
+     */
+    private synchronized ScheduledExecutorService getHedgeTimer() {
+        if (hedgeTimer == null) {
+            hedgeTimer = Executors.newSingleThreadScheduledExecutor(daemonThreads("DNSLookupService hedge timer"));
+        }
+        return hedgeTimer;
+    }
+
+    /**
+     * Runs getResultsFollowingCNames on a thread of its own, and returns a future for its results. When the JVM
+     * supports virtual threads (Java 21 or later) every resolution gets a new virtual thread, which is parked
+     * cheaply while it waits for a nameserver, so thousands of resolutions can be in flight at once. On older JVMs
+     * platform threads are used instead, from a pool of at most 256 threads: each one blocks while its resolution
+     * waits, so at most 256 resolutions run at once, and the others are queued until a thread is free. Threads that
+     * stay idle for a minute are stopped.
+     *
+     * @param question             Host and record type to be used for search.
+     * @param maxIndirectionLevels Number of CNAME indirection levels to support.
+     * @return A future completed with the results. It is completed exceptionally, with a DNSErrorException as the
+     * cause, if getResultsFollowingCNames throws one.
+     */
+    public CompletableFuture<Collection<ResourceRecord>> resolveOnVirtualThread(DNSQuestion question,
+                                                                                int maxIndirectionLevels) {
+        CompletableFuture<Collection<ResourceRecord>> future = new CompletableFuture<>();
+        try {
+            getResolutionExecutor().execute(() -> {
+                try {
+                    future.complete(getResultsFollowingCNames(question, maxIndirectionLevels));
+                } catch (DNSErrorException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private synchronized ExecutorService getResolutionExecutor() {
+        if (resolutionExecutor == null) {
+            try {
+                // Looked up by reflection, so the code still compiles and runs on JVMs without virtual threads
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                resolutionExecutor = (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_RESOLUTION_THREADS, MAX_RESOLUTION_THREADS,
+                        60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), daemonThreads("DNSLookupService resolution"));
+                pool.allowCoreThreadTimeOut(true);
+                resolutionExecutor = pool;
+            }
+        }
+        return resolutionExecutor;
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Answers a question for which the cache only has stale records. A fresh resolution is run in the background and
+     * its result returned if it arrives before the client deadline; otherwise, or if it fails to get an answer, the
+     * stale records are returned.
+     *
+     * @param question The question to be answered.
+     * @param stale    The stale records cached for the question.
+     * @return The fresh results, or the stale records.
+     * @throws DNSErrorException If the fresh resolution finds that the name does not exist.
+     */
+    private Collection<ResourceRecord> resolveOrServeStale(DNSQuestion question, List<ResourceRecord> stale)
+            throws DNSErrorException {
+        Long lastFailure = staleRefreshFailures.get(question);
+        if (lastFailure != null && DNSClock.now() - lastFailure < STALE_REFRESH_INTERVAL) {
+            return stale;
+        }
+        // Callers asking the same question while a resolution is running wait for that same resolution
+        FutureTask<Collection<ResourceRecord>> task = new FutureTask<>(() -> {
+            try {
+                Collection<ResourceRecord> results = backgroundService.iterativeQuery(question, true);
+                if (results.isEmpty() && cache.getNegativeResult(question) == null) {
+                    staleRefreshFailures.put(question, DNSClock.now());
+                } else {
+                    staleRefreshFailures.remove(question);
+                }
+                return results;
+            } finally {
+                staleRefreshes.remove(question);
+            }
+        });
+        Future<Collection<ResourceRecord>> fresh = staleRefreshes.putIfAbsent(question, task);
+        if (fresh == null) {
+            fresh = task;
+            try {
+                backgroundExecutor.execute(task);
+            } catch (RejectedExecutionException e) {
+                staleRefreshes.remove(question);
+                return stale;
+            }
+        }
+        try {
+            Collection<ResourceRecord> results = fresh.get(clientDeadline, TimeUnit.MILLISECONDS);
+            if (!results.isEmpty() || cache.getNegativeResult(question) != null) {
+                return results;
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DNSErrorException) {
+                DNSErrorException error = (DNSErrorException) e.getCause();
+                // A name that doesn't exist is an answer, not a failure to get one
+                if (cache.getNegativeResult(question) == DNSCache.NegativeResult.NXDOMAIN) throw error;
+            }
+            staleRefreshFailures.put(question, DNSClock.now());
+        } catch (TimeoutException e) {
+            // The resolution continues in the background, and will update the cache if it succeeds
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return stale;
+    }
+
+    /**
+     * Queues a background resolution of a question whose cached records are about to expire.
+     *
+     * @param question The question to be resolved again.
+     */
+    private void prefetch(DNSQuestion question) {
+        try {
+            backgroundExecutor.execute(() -> {
+                try {
+                    backgroundService.iterativeQuery(question, false);
+                } catch (DNSErrorException | RuntimeException ignored) {
+                    // The cached records are simply left to expire
+                } finally {
+                    cache.prefetchCompleted(question);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            cache.prefetchCompleted(question);
+        }
     }
 
     /**
@@ -90,6 +499,361 @@ public class DNSLookupService {
         return newResults;
     }
 
+    /**
+     * Resolves a question asynchronously, following CNAME records like getResultsFollowingCNames does, with up to
+     * ten levels of indirection.
+     *
+     * @param question Host and record type to be used for search.
+     * @return A future completed with the results, as in resolveAsync(question, maxIndirectionLevels).
+     */
+    public CompletableFuture<Collection<ResourceRecord>> resolveAsync(DNSQuestion question) {
+        return resolveAsync(question, MAX_INDIRECTION_LEVEL);
+    }
+
+    /**
+     * Resolves a question asynchronously, following CNAME records like getResultsFollowingCNames does. The calling
+     * thread never waits for a nameserver: queries are sent through a non-blocking channel, and each step of the
+     * resolution continues when the response it depends on arrives, on the thread that receives responses. Many
+     * resolutions can therefore be in flight at once on a handful of threads.
+     * <p>
+     * Asynchronous resolutions use the cache like iterativeQuery does, but they do not serve stale records.
+     *
+     * @param question             Host and record type to be used for search.
+     * @param maxIndirectionLevels Number of CNAME indirection levels to support.
+     * @return A future completed with the results. It is completed exceptionally, with a DNSErrorException as the
+     * cause, if a nameserver returns an error or the CNAME indirection limit is exceeded.
+     */
+    public CompletableFuture<Collection<ResourceRecord>> resolveAsync(DNSQuestion question, int maxIndirectionLevels) {
+        return resolveAsync(question, maxIndirectionLevels, null);
+    }
+
+    /**
+     * Resolves a question asynchronously, as resolveAsync does, on behalf of another resolution.
+     *
+     * @param parent The resolution that needs the results (e.g., the address of one of its nameservers), or null.
+     */
+    private CompletableFuture<Collection<ResourceRecord>> resolveAsync(DNSQuestion question, int maxIndirectionLevels,
+                                                                       Flight parent) {
+        if (maxIndirectionLevels < 0) return failed(new DNSErrorException("CNAME indirection limit exceeded"));
+
+        return iterativeQueryAsync(question, parent).thenCompose(directResults -> {
+            if (containsAnswer(directResults, question)) {
+                return CompletableFuture.completedFuture(directResults);
+            }
+            List<CompletableFuture<Collection<ResourceRecord>>> chained = new ArrayList<>();
+            for (ResourceRecord record : directResults) {
+                if (record.getRecordType() == RecordType.CNAME) {
+                    chained.add(resolveAsync(
+                            new DNSQuestion(record.getTextResult(), question.getRecordType(), question.getRecordClass()),
+                            maxIndirectionLevels - 1, parent));
+                }
+            }
+            return CompletableFuture.allOf(chained.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+                Set<ResourceRecord> newResults = new HashSet<>(directResults);
+                for (CompletableFuture<Collection<ResourceRecord>> results : chained) {
+                    newResults.addAll(results.join());
+                }
+                return newResults;
+            });
+        });
+    }
+
+    /**
+     * Answers one question asynchronously, following the same steps as iterativeQuery. Each step that needs a
+     * response from a nameserver is a continuation of the query sent to it.
+     * <p>
+     * Like iterativeQuery, asynchronous resolutions are coalesced: if the question is already being resolved (by
+     * either kind of resolution), the future of that resolution is returned instead of starting another one. A
+     * resolution started on behalf of another (parent) one depends on it, and joining a resolution that depends,
+     * directly or not, on the parent would never complete (e.g., two nameservers in different zones whose addresses
+     * can only be found through each other). In that case the question can't be answered, and the future is
+     * completed with no results.
+     *
+     * @param question Host name and record type/class to be used for the query.
+     * @param parent   The resolution that needs the results, or null.
+     * @return A future completed with the results, which may be empty.
+     */
+    private CompletableFuture<Collection<ResourceRecord>> iterativeQueryAsync(DNSQuestion question, Flight parent) {
+        Collection<ResourceRecord> cachedRR = cache.getCachedResults(question);
+        try {
+            if (!cachedRR.isEmpty() || isNegativelyCached(question)) {
+                return CompletableFuture.completedFuture(cachedRR);
+            }
+        } catch (DNSErrorException e) {
+            return failed(e);
+        }
+
+        Flight flight = new Flight();
+        Flight existing = inFlight.putIfAbsent(question, flight);
+        if (existing != null) {
+            if (!dependOn(parent, existing)) {
+                return CompletableFuture.completedFuture(Collections.emptyList());
+            }
+            coalesced.increment();
+            return existing.results.whenComplete((results, error) -> stopDepending(parent, existing));
+        }
+        dependOn(parent, flight);
+
+        resolutions.increment();
+        // Only one step of the resolution runs at a time, and each one happens-before the next, so these
+        // collections need no synchronization
+        Set<InetAddress> queriedServers = new HashSet<>();
+        List<ResourceRecord> usedNameservers = new ArrayList<>();
+        AtomicInteger hedges = new AtomicInteger(maxHedgedQueries);
+        queryNextServerAsync(question, queriedServers, usedNameservers, hedges, flight)
+                .whenComplete((results, error) -> {
+                    cache.release(usedNameservers);
+                    inFlight.remove(question, flight);
+                    stopDepending(parent, flight);
+                    if (error != null) flight.results.completeExceptionally(error);
+                    else flight.results.complete(results);
+                });
+        return flight.results;
+    }
+
+    /**
+     * Records that a resolution waits for the results of another one, unless that one already depends on it, directly
+     * or through other resolutions.
+     *
+     * @param parent The waiting resolution, or null if it is not a resolution (nothing depends on it).
+     * @param flight The resolution waited for.
+     * @return false if waiting would close a cycle of resolutions waiting for each other.
+     */
+    private boolean dependOn(Flight parent, Flight flight) {
+        if (parent == null) return true;
+        synchronized (waiting) {
+            Deque<Flight> toVisit = new ArrayDeque<>();
+            Set<Flight> visited = new HashSet<>();
+            toVisit.push(flight);
+            while (!toVisit.isEmpty()) {
+                Flight next = toVisit.pop();
+                if (next == parent) return false;
+                if (visited.add(next)) toVisit.addAll(next.dependencies);
+            }
+            parent.dependencies.add(flight);
+            return true;
+        }
+    }
+
+    private void stopDepending(Flight parent, Flight flight) {
+        if (parent == null) return;
+        synchronized (waiting) {
+            parent.dependencies.remove(flight);
+        }
+    }
+
+    /**
+     * Sends the question to the best nameserver that was not queried yet, resolving the addresses of the nameservers
+     * first if none is known, and continues with the next nameserver if the response does not answer the question.
+     * While the resolution has hedged queries left, the question is also sent to other nameservers if the first one
+     * is slow.
+     */
+    private CompletableFuture<Collection<ResourceRecord>> queryNextServerAsync(
+            DNSQuestion question, Set<InetAddress> queriedServers, List<ResourceRecord> usedNameservers,
+            AtomicInteger hedges, Flight flight) {
+        List<ResourceRecord> bestNameservers = cache.getBestNameservers(question);
+        cache.protect(bestNameservers);
+        usedNameservers.addAll(bestNameservers);
+        List<ResourceRecord> knownIP = cache.filterByKnownIPAddress(bestNameservers);
+        CompletableFuture<List<ResourceRecord>> servers = knownIP.isEmpty() && !bestNameservers.isEmpty()
+                ? resolveNameserversAsync(bestNameservers, flight)
+                : CompletableFuture.completedFuture(knownIP);
+
+        return servers.thenCompose(known -> {
+            ResourceRecord chosen = transport.getServers().choose(known, queriedServers);
+            if (chosen == null) {
+                return CompletableFuture.completedFuture(cache.getCachedResults(question));
+            }
+            InetAddress bestServer = chosen.getInetResult();
+            int attempts = attemptsFor(known, queriedServers, bestServer);
+            CompletableFuture<Set<ResourceRecord>> query;
+            if (hedges.get() > 0) {
+                HedgedQuery hedgedQuery = new HedgedQuery(question, known, queriedServers, hedges, false);
+                hedgedQuery.send(bestServer, attempts);
+                query = hedgedQuery.response.thenApply(responseMessage -> {
+                    queriedServers.addAll(hedgedQuery.getServers());
+                    return responseMessage == null ? null : processResponseAsync(responseMessage);
+                });
+            } else {
+                queriedServers.add(bestServer);
+                query = queryAsync(question, bestServer, attempts);
+            }
+            return query.thenCompose(response -> {
+                Collection<ResourceRecord> cachedRR = cache.getCachedResults(question);
+                try {
+                    if (!cachedRR.isEmpty() || isNegativelyCached(question)) {
+                        return CompletableFuture.completedFuture(cachedRR);
+                    }
+                } catch (DNSErrorException e) {
+                    throw new CompletionException(e);
+                }
+                return queryNextServerAsync(question, queriedServers, usedNameservers, hedges, flight);
+            });
+        });
+    }
+
+    /**
+     * Resolves the addresses of the given nameservers, all at the same time. The future is completed as soon as the
+     * address of one of them is known; the other resolutions keep running, and add their results to the cache.
+     *
+     * @param parent The resolution that needs the addresses, or null.
+     * @return A future completed with the A records of the nameservers whose addresses are known, or with an empty
+     * list if none could be resolved. If all the resolutions fail, it is completed with the error of the first one.
+     */
+    private CompletableFuture<List<ResourceRecord>> resolveNameserversAsync(List<ResourceRecord> nameservers,
+                                                                            Flight parent) {
+        CompletableFuture<List<ResourceRecord>> first = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(nameservers.size());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (ResourceRecord nameserver : nameservers) {
+            DNSQuestion newQuestion = new DNSQuestion(nameserver.getTextResult(), RecordType.A, RecordClass.IN);
+            resolveAsync(newQuestion, MAX_INDIRECTION_LEVEL_NS, parent).whenComplete((results, error) -> {
+                if (error != null) failure.compareAndSet(null, error);
+                boolean last = remaining.decrementAndGet() == 0;
+                List<ResourceRecord> knownIP = cache.filterByKnownIPAddress(nameservers);
+                if (!knownIP.isEmpty()) {
+                    first.complete(knownIP);
+                } else if (last) {
+                    if (failure.get() != null) first.completeExceptionally(failure.get());
+                    else first.complete(Collections.emptyList());
+                }
+            });
+        }
+        return first;
+    }
+
+    /**
+     * Sends a query to a nameserver without blocking, as individualQueryProcess does. Truncated responses are
+     * repeated over TCP.
+     *
+     * @return A future completed with all the records received in the response (which are also added to the
+     * cache), or with null if no response was received.
+     */
+    private CompletableFuture<Set<ResourceRecord>> queryAsync(DNSQuestion question, InetAddress server, int attempts) {
+        DNSMessage queryMessage = buildQuery(question, server);
+        return completeExchange(sendUDP(queryMessage, question, server, attempts, false), queryMessage,
+                question, server, attempts, false)
+                .whenComplete((responseMessage, error) -> queryMessages.release(queryMessage))
+                .thenApply(responseMessage -> responseMessage == null ? null : processResponseAsync(responseMessage));
+    }
+
+    /**
+     * Processes a response in a continuation, where a DNSErrorException must be wrapped to complete the future.
+     */
+    private Set<ResourceRecord> processResponseAsync(DNSMessage responseMessage) {
+        try {
+            return processResponse(responseMessage);
+        } catch (DNSErrorException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Handles the responses that require sending the query again: if the server rejected the OPT record of the query
+     * (with FORMERR or NOTIMP, or with BADVERS in the extended RCODE), the query is sent again without it, and the server is remembered as not supporting
+     * EDNS(0); if the response over UDP was truncated, the query is repeated over TCP. The query may be returned to
+     * the pool of query messages (by the caller) once the returned future is completed.
+     *
+     * @param firstResponse The future of the query sent with sendUDP.
+     * @param queryMessage  The query.
+     * @param question      The question in the query.
+     * @param server        Address of the server the query was sent to.
+     * @param attempts      The maximum number of times a query without EDNS(0) is sent.
+     * @param reportRetries Whether a message is printed before each retransmission.
+     * @return A future completed with the full response, or with null if no response was received.
+     */
+    private CompletableFuture<DNSMessage> completeExchange(CompletableFuture<DNSMessage> firstResponse,
+                                                           DNSMessage queryMessage, DNSQuestion question,
+                                                           InetAddress server, int attempts, boolean reportRetries) {
+        return firstResponse.thenCompose(responseMessage -> {
+            if (responseMessage == null) return CompletableFuture.completedFuture(null);
+            if (queryMessage.getARCount() > 0 && rejectsEDNS(responseMessage)) {
+                transport.getServers().recordEDNSFailure(server);
+                DNSMessage plainQuery = buildQuery(question, false);
+                return completeExchange(sendUDP(plainQuery, question, server, attempts, reportRetries),
+                        plainQuery, question, server, attempts, reportRetries)
+                        .whenComplete((plainResponse, error) -> queryMessages.release(plainQuery));
+            }
+            if (responseMessage.getTC()) return sendTCP(queryMessage, question, server);
+            return CompletableFuture.completedFuture(responseMessage);
+        });
+    }
+
+    /**
+     * Tells whether a response to a query with an OPT record rejects EDNS(0): with FORMERR or NOTIMP in the header, or
+     * with BADVERS in the extended RCODE. A server that rejects the version of EDNS answers with nothing but its own
+     * OPT record, so that is the only kind of response whose OPT record is looked for here; the OPT record of any other
+     * response is decoded along with the rest of its records by processResponse.
+     */
+    private static boolean rejectsEDNS(DNSMessage responseMessage) {
+        int rcode = responseMessage.getRcode();
+        if (rcode == DNSMessage.FORMERR || rcode == DNSMessage.NOTIMP) return true;
+        if (rcode != DNSMessage.NOERROR || responseMessage.getANCount() > 0 || responseMessage.getNSCount() > 0
+                || responseMessage.getARCount() != 1) {
+            return false;
+        }
+        return responseMessage.findOPT() && responseMessage.getExtendedRcode() == DNSMessage.BADVERS;
+    }
+
+    /**
+     * Sends a query over TCP, on the open connection to the server if there is one. If another query for the same
+     * question is waiting on that connection with the same transaction ID, a new ID is chosen.
+     *
+     * @param queryMessage The query to be sent.
+     * @param question     The question in the query.
+     * @param server       Address of the server to be used for the query.
+     * @return A future completed with the response, or exceptionally if the connection fails.
+     */
+    private CompletableFuture<DNSMessage> sendTCP(DNSMessage queryMessage, DNSQuestion question, InetAddress server) {
+        CompletableFuture<DNSMessage> response;
+        verbose.printQueryToSend("TCP", question, server, queryMessage.getID());
+        while ((response = tcpConnections.send(queryMessage, question, server, DEFAULT_DNS_PORT)) == null) {
+            queryMessage.setID(ThreadLocalRandom.current().nextInt() & 0xffff);
+            verbose.printQueryToSend("TCP", question, server, queryMessage.getID());
+        }
+        queriesSent.get(question.getRecordType()).increment();
+        return response;
+    }
+
+    /**
+     * Sends a query over UDP through the transport, which retransmits it until it is answered or the given number of
+     * attempts have been made. The time to wait for each attempt depends on how fast the server answered before. If
+     * another query for the same question and server is in flight with the same transaction ID, a new ID is chosen.
+     * Queries always fit in a UDP message: a single question (whose name is at most 255 bytes) and an OPT record
+     * are far below 512 bytes, the size of the buffer they are built in.
+     *
+     * @param queryMessage  The query to be sent.
+     * @param question      The question in the query.
+     * @param server        Address of the server to be used for the query.
+     * @param attempts      The maximum number of times the query is sent.
+     * @param reportRetries Whether a message is printed before each retransmission.
+     * @return A future completed with the response, or with null if no response was received.
+     */
+    private CompletableFuture<DNSMessage> sendUDP(DNSMessage queryMessage, DNSQuestion question, InetAddress server,
+                                                  int attempts, boolean reportRetries) {
+        while (true) {
+            // Attempts are reported on the selector thread, possibly after the message was reused for another query
+            int id = queryMessage.getID();
+            CompletableFuture<DNSMessage> response = transport.send(queryMessage, question, server, DEFAULT_DNS_PORT,
+                    attempts, attempt -> {
+                        if (reportRetries && attempt > 1) {
+                            System.out.println("Attempt " + attempt + ": No response from "
+                                    + server.getHostAddress() + ".");
+                        }
+                        verbose.printQueryToSend("UDP", question, server, id);
+                        queriesSent.get(question.getRecordType()).increment();
+                    });
+            if (response != null) return response;
+            queryMessage.setID(ThreadLocalRandom.current().nextInt() & 0xffff);
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable error) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+
     /**
      * Answers one question.  If there are valid (not expired) results in the cache, returns these results.
      * Otherwise it chooses the best nameserver to query, retrieves results from that server
@@ -102,98 +866,247 @@ public class DNSLookupService {
      */
     public Collection<ResourceRecord> iterativeQuery(DNSQuestion question)
             throws DNSErrorException {
+        return iterativeQuery(question, true);
+    }
+
+    /**
+     * Answers one question, as iterativeQuery does. If useCache is false, the records already cached for the question
+     * are ignored, and nameservers are queried until one of them answers the question again; this is used to refresh
+     * cached records before they expire.
+     *
+     * @param question Host name and record type/class to be used for the query.
+     * @param useCache Whether an answer already in the cache can be returned without querying a nameserver.
+     */
+    private Collection<ResourceRecord> iterativeQuery(DNSQuestion question, boolean useCache)
+            throws DNSErrorException {
         // Get cached results for the given question
-        Collection<ResourceRecord> cachedRR = cache.getCachedResults(question);
+        Collection<ResourceRecord> cachedRR = useCache ? cache.getCachedResults(question) : Collections.emptyList();
 
         // If we have cached results, immediately return them
         if (!cachedRR.isEmpty()) {
             return cachedRR;
         }
 
-        // Keep track of queried servers
-        Set<InetAddress> queriedServers = new HashSet<>();
+        // If a nameserver already told us there is no such name or no such record, don't ask again
+        if (useCache && isNegativelyCached(question)) {
+            return cachedRR;
+        }
 
-        // If no IP addresses are known for the nameservers, iterate over the best nameservers
-        while (cachedRR.isEmpty()) {
-            // If no cached results are found, get a list of the best nameservers
-            List<ResourceRecord> bestNameservers = cache.getBestNameservers(question);
-            // Check nameservers with knownIP
-            List<ResourceRecord> knownIP = cache.filterByKnownIPAddress(bestNameservers);
-
-            // If no known IP, resolve with CNAME
-            if (knownIP.isEmpty() && !bestNameservers.isEmpty()) {
-                for (ResourceRecord rr : bestNameservers) {
-                    // Create a new DNS question to resolve its IP address
-                    DNSQuestion newQuestion = new DNSQuestion(rr.getTextResult(), RecordType.A, RecordClass.IN);
-
-                    // Resolve this nameserver's IP by CNAMEs.
-                    getResultsFollowingCNames(newQuestion, MAX_INDIRECTION_LEVEL_NS);
-                    knownIP = cache.filterByKnownIPAddress(bestNameservers);
-                    if (!knownIP.isEmpty()) {
-                        break;
-                    }
+        // If only stale records are cached, don't let the caller wait longer than the client deadline
+        if (useCache && clientDeadline >= 0) {
+            List<ResourceRecord> stale = cache.getStaleResults(question, STALE_TTL);
+            if (!stale.isEmpty()) {
+                return resolveOrServeStale(question, stale);
+            }
+        }
 
+        return coalesce(question, useCache);
+    }
+
+    /**
+     * Resolves a question that is not in the cache, unless another thread is already resolving it, in which case
+     * this thread waits for that resolution and returns its results (single-flight). The addresses of nameservers
+     * needed while answering the question are resolved asynchronously, and coalesced with the resolutions in flight
+     * in the same way (see iterativeQueryAsync).
+     * <p>
+     * Waiting for another thread could deadlock if that thread is itself waiting, directly or through other
+     * resolutions, for one that this thread leads (e.g., two nameservers in different zones whose addresses can only
+     * be found through each other). Threads record which resolution they are waiting for, and a thread that would
+     * close such a cycle resolves the question on its own instead.
+     * <p>
+     * A resolution that bypasses the cache (a prefetch) is coalesced too: any resolution in flight started because
+     * the cache had no answer, so its results are just as fresh.
+     *
+     * @param question Host name and record type/class to be used for the query.
+     * @param useCache Whether an answer already in the cache can be returned without querying a nameserver.
+     * @return The results of the resolution.
+     */
+    private Collection<ResourceRecord> coalesce(DNSQuestion question, boolean useCache) throws DNSErrorException {
+        Flight flight = new Flight();
+        Flight existing = inFlight.putIfAbsent(question, flight);
+        if (existing != null) {
+            if (startWaiting(existing)) {
+                coalesced.increment();
+                try {
+                    return existing.await();
+                } finally {
+                    stopWaiting();
                 }
-                // Get the next nameserver from the list and remove it from the list
-//                ResourceRecord current = bestNameservers.remove(0);
+            }
+            return queryNameservers(question, useCache, null);
+        }
+
+        try {
+            Collection<ResourceRecord> results = queryNameservers(question, useCache, flight);
+            flight.results.complete(results);
+            return results;
+        } catch (DNSErrorException | RuntimeException e) {
+            flight.results.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(question, flight);
+        }
+    }
 
-                // Update knownIP then go next iteration for checking
+    /**
+     * Records that the current thread is about to wait for a resolution, unless that would create a cycle of
+     * threads waiting for each other.
+     *
+     * @return true if the thread can wait for the resolution.
+     */
+    private boolean startWaiting(Flight flight) {
+        Thread current = Thread.currentThread();
+        synchronized (waiting) {
+            for (Flight next = flight; next != null; next = waiting.get(next.leader)) {
+                if (next.leader == current) return false;
             }
-//            else if (knownIP.isEmpty()) {
-//                // Stop while loop if no IP found and best server is empty
-//                break;
-//            }
+            waiting.put(current, flight);
+            return true;
+        }
+    }
 
-            // Perform query on known IP
-            ResourceRecord bestServer = knownIP.remove(0);
-            if (!queriedServers.contains(bestServer.getInetResult())) {
-                individualQueryProcess(question, bestServer.getInetResult());
-                queriedServers.add(bestServer.getInetResult());
+    private void stopWaiting() {
+        synchronized (waiting) {
+            waiting.remove(Thread.currentThread());
+        }
+    }
+
+    /**
+     * Resolves a question by querying nameservers, as described in iterativeQuery.
+     *
+     * @param question Host name and record type/class to be used for the query.
+     * @param useCache Whether an answer already in the cache can be returned without querying a nameserver.
+     * @param flight   The resolution in flight for the question, if any, on behalf of which nameserver addresses are
+     *                 resolved.
+     */
+    private Collection<ResourceRecord> queryNameservers(DNSQuestion question, boolean useCache, Flight flight)
+            throws DNSErrorException {
+        Collection<ResourceRecord> cachedRR = Collections.emptyList();
+        resolutions.increment();
+        // Keep track of queried servers
+        Set<InetAddress> queriedServers = new HashSet<>();
+        // Nameservers in use are protected from cache eviction until the query is answered
+        List<ResourceRecord> usedNameservers = new ArrayList<>();
+        // Hedged queries left for this resolution
+        AtomicInteger hedges = new AtomicInteger(maxHedgedQueries);
+
+        try {
+            // If no IP addresses are known for the nameservers, iterate over the best nameservers
+            while (true) {
+                // If no cached results are found, get a list of the best nameservers
+                List<ResourceRecord> bestNameservers = cache.getBestNameservers(question);
+                cache.protect(bestNameservers);
+                usedNameservers.addAll(bestNameservers);
+                // Check nameservers with knownIP
+                List<ResourceRecord> knownIP = cache.filterByKnownIPAddress(bestNameservers);
+
+                // If no known IP, resolve the addresses of all the nameservers at once, and go on with the first one
+                if (knownIP.isEmpty() && !bestNameservers.isEmpty()) {
+                    knownIP = resolveNameservers(bestNameservers, flight);
+                }
+
+                // Perform query on the fastest known IP that was not queried yet. If every known server for the best
+                // nameservers was already queried without getting an answer, give up.
+                ResourceRecord bestServer = transport.getServers().choose(knownIP, queriedServers);
+                if (bestServer == null) {
+                    break;
+                }
+                InetAddress server = bestServer.getInetResult();
+                int attempts = attemptsFor(knownIP, queriedServers, server);
+                Set<ResourceRecord> response;
+                if (hedges.get() > 0) {
+                    response = hedgedQueryProcess(question, knownIP, queriedServers, server, attempts, hedges);
+                } else {
+                    response = individualQueryProcess(question, server, attempts);
+                    queriedServers.add(server);
+                }
 
                 // Check cached results
-                cachedRR = cache.getCachedResults(question);
-                if (!cachedRR.isEmpty()) {
-                    return cachedRR;
+                if (useCache || containsAnswerOrCName(response, question)) {
+                    cachedRR = cache.getCachedResults(question);
+                    if (!cachedRR.isEmpty() || isNegativelyCached(question)) {
+                        return cachedRR;
+                    }
+                } else if (isNegativelyCached(question)) {
+                    return Collections.emptyList();
                 }
             }
-
-//            // Update best name server
-//            if (knownIP.isEmpty()) {
-//                bestNameservers = cache.getBestNameservers(question);
-//            }
+        } finally {
+            cache.release(usedNameservers);
         }
         // return an empty result.
-        return cachedRR;
+        return useCache ? cachedRR : cache.getCachedResults(question);
     }
 
-    private DNSMessage sendQueryTCP(byte[] message, InetAddress server) {
-        try (Socket TCPsockt = new Socket(server, DEFAULT_DNS_PORT);
-             DataOutputStream outputStream = new DataOutputStream(TCPsockt.getOutputStream());
-             DataInputStream inputStream = new DataInputStream(TCPsockt.getInputStream())){
-
-            // Send message
-            outputStream.writeShort(message.length);
-            outputStream.write(message);
-            outputStream.flush();
-
-            // Read the response message
-            int length = inputStream.readUnsignedShort();
-            byte[] responseBytes = new byte[length];
-            inputStream.readFully(responseBytes);
+    /**
+     * Resolves the addresses of nameservers for which no glue was received, following CNAMEs. The lookups are started
+     * concurrently, and this method returns as soon as one of the addresses is known; the other lookups go on in
+     * the background and fill the cache, so the addresses of the other nameservers are likely known by the time they
+     * are needed.
+     *
+     * @param nameservers The NS records of the nameservers.
+     * @param parent      The resolution that needs the addresses, or null.
+     * @return The A records of the nameservers whose addresses are known, possibly empty.
+     * @throws DNSErrorException if all the lookups fail, and the first one failed with a DNSErrorException.
+     */
+    private List<ResourceRecord> resolveNameservers(List<ResourceRecord> nameservers, Flight parent)
+            throws DNSErrorException {
+        try {
+            return resolveNameserversAsync(nameservers, parent).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DNSErrorException) throw (DNSErrorException) e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        }
+    }
 
-            return new DNSMessage(responseBytes, responseBytes.length);
+    /**
+     * Examines a response to see if it contains an answer to the given question, or a CNAME record for its name.
+     *
+     * @param response The records received in a response, or null if no response was received.
+     * @param question The DNS question
+     * @return true if the response answers the question, possibly with a CNAME.
+     */
+    private boolean containsAnswerOrCName(Collection<ResourceRecord> response, DNSQuestion question) {
+        if (response == null) return false;
+        for (ResourceRecord rr : response) {
+            if (rr.getHostName().equals(question.getHostName())
+                    && (rr.getRecordType() == question.getRecordType() || rr.getRecordType() == RecordType.CNAME)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * Checks the cache for a negative answer to the question. If the cache says the name does not exist, throws the
+     * same error the nameserver returned.
+     *
+     * @param question Host name and record type/class to be checked.
+     * @return true if the cache says the name has no records of this type.
+     * @throws DNSErrorException if the cache says the name does not exist.
+     */
+    private boolean isNegativelyCached(DNSQuestion question) throws DNSErrorException {
+        DNSCache.NegativeResult negative = cache.getNegativeResult(question);
+        if (negative == DNSCache.NegativeResult.NXDOMAIN) {
+            throw new DNSErrorException("Error code: " + DNSMessage.NXDOMAIN + ": "
+                    + DNSMessage.dnsErrorMessage(DNSMessage.NXDOMAIN));
         }
+        return negative == DNSCache.NegativeResult.NODATA;
     }
 
     /**
      * Handles the process of sending an individual DNS query with a single question. Builds and sends the query (request)
-     * message, then receives and parses the response. Received responses that do not match the requested transaction ID
-     * are ignored. If no response is received after SO_TIMEOUT milliseconds, the request is sent again, with the same
-     * transaction ID. The query should be sent at most MAX_QUERY_ATTEMPTS times, after which the function should return
-     * without changing any values. If a response is received, all of its records are added to the cache.
+     * message, then receives and parses the response. The query is sent through the service's shared socket, whose
+     * dispatcher routes each response to the query with the same transaction ID, server and question; other
+     * responses are ignored, and do not count as a failed attempt. If no response is received within the server's
+     * retransmission timeout (computed from its past round-trip times, and doubled for each attempt), the request is
+     * sent again, with the same transaction ID. The query should be sent at most MAX_QUERY_ATTEMPTS times, after which
+     * the function should return without changing any values. If a response is received, all of its records are added
+     * to the cache.
      * <p>
      * If the reply contains a non-zero Rcode value, then throw a DNSErrorException.
      * <p>
@@ -207,55 +1120,74 @@ public class DNSLookupService {
      */
     public Set<ResourceRecord> individualQueryProcess(DNSQuestion question, InetAddress server)
             throws DNSErrorException {
-        // Build a query message
-        DNSMessage queryMessage = buildQuery(question);
-        int transactionID = queryMessage.getID();
-
-        // Initialize send message in byte array
-        byte[] sendMessage = queryMessage.getUsed();
-
-        // Wrap the message with DatagarmPacket
-        DatagramPacket sendPacket = new DatagramPacket(sendMessage, sendMessage.length, server, DEFAULT_DNS_PORT);
-
-        int i = 0;
-        // Try to send query with at most MAX_QUERY_ATTEMPTS
-        while (i < MAX_QUERY_ATTEMPTS) {
-            try {
-                // Print specific query before it is sent to the server
-                verbose.printQueryToSend("UDP", question, server, queryMessage.getID());
-
-                // Send message through socket
-                socket.send(sendPacket);
-
-                // Init a packet to receive message
-                byte[] receiveMessage = new byte[MAX_DNS_MESSAGE_LENGTH];
-                DatagramPacket receivePacket = new DatagramPacket(receiveMessage, receiveMessage.length);
+        return individualQueryProcess(question, server, MAX_QUERY_ATTEMPTS);
+    }
 
-                // Receive message
-                socket.receive(receivePacket);
+    private Set<ResourceRecord> individualQueryProcess(DNSQuestion question, InetAddress server, int attempts)
+            throws DNSErrorException {
+        // Build a query message, with an OPT record unless the server is known to reject it
+        DNSMessage queryMessage = buildQuery(question, server);
 
-                // Transfer response packet to message
-                DNSMessage responseMessage = new DNSMessage(receivePacket.getData(), receivePacket.getLength());
+        // Send the query and wait for the dispatcher to hand over the response (or give up). Truncated responses
+        // are repeated over TCP, and queries rejected because of EDNS are repeated without it.
+        DNSMessage responseMessage = null;
+        try {
+            responseMessage = completeExchange(sendUDP(queryMessage, question, server, attempts, true),
+                    queryMessage, question, server, attempts, true)
+                    .whenComplete((response, error) -> queryMessages.release(queryMessage)).get();
+        } catch (ExecutionException e) {
+            // The socket was closed, or the TCP connection failed
+            System.out.println("Query failed: " + e.getCause().getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
 
-                if (responseMessage.getQR() && responseMessage.getID() == transactionID) {
-                    // If the message was truncated, resend through TCP
-                    if (responseMessage.getTC()) {
-                        responseMessage = sendQueryTCP(sendMessage, server);
-                    }
-                    return processResponse(responseMessage);
-                } else {
-                    i++;
-                }
-            } catch (IOException e) {
-                i++;
-                // Handle the timeout exception
-                System.out.println("Attempt " + (i + 1) + ": No response after " + SO_TIMEOUT + " milliseconds.");
-            }
+        if (responseMessage == null) {
+            System.out.println("Failed after " + attempts + (attempts == 1 ? " attempt." : " attempts."));
+            return null;
+        }
+        return processResponse(responseMessage);
+    }
 
+    /**
+     * Sends a query like individualQueryProcess does, but if the server has not answered by the time it usually does,
+     * also sends it to the next best server among the candidates (as long as the resolution has hedged queries left).
+     * The first response received is processed; the others are ignored.
+     *
+     * @param question       Host name and record type/class to be used for the query.
+     * @param candidates     The A records of all the nameservers that can answer the question.
+     * @param queriedServers The addresses of the nameservers already queried; the servers this query is sent to are
+     *                       added to it.
+     * @param server         Address of the first server to be used for the query.
+     * @param attempts       The maximum number of times the query is sent to the first server.
+     * @param hedges         The number of hedged queries left for the resolution.
+     * @return If no response is received, returns null. Otherwise, returns a set of all resource records
+     * received in the response.
+     * @throws DNSErrorException if the Rcode in the response is non-zero
+     */
+    private Set<ResourceRecord> hedgedQueryProcess(DNSQuestion question, List<ResourceRecord> candidates,
+                                                   Set<InetAddress> queriedServers, InetAddress server, int attempts,
+                                                   AtomicInteger hedges) throws DNSErrorException {
+        HedgedQuery query = new HedgedQuery(question, candidates, queriedServers, hedges, true);
+        query.send(server, attempts);
+        DNSMessage responseMessage = null;
+        try {
+            responseMessage = query.response.get();
+        } catch (ExecutionException e) {
+            // Not completed exceptionally
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        List<InetAddress> servers = query.getServers();
+        queriedServers.addAll(servers);
 
-        System.out.println("Failed after " + MAX_QUERY_ATTEMPTS + " attempts.");
-        return null;
+        if (responseMessage == null) {
+            System.out.println("No response from " + servers.stream().map(InetAddress::getHostAddress)
+                    .collect(Collectors.joining(", ")) + ".");
+            return null;
+        }
+        return processResponse(responseMessage);
     }
 
     /**
@@ -263,15 +1195,52 @@ public class DNSLookupService {
      * A random transaction ID must be generated and filled in the corresponding part of the query. The query
      * must be built as an iterative (non-recursive) request for a regular query with a single question. When the
      * function returns, the message's buffer's position (`message.buffer.position`) must be equivalent
-     * to the size of the query data.
+     * to the size of the query data. Unless EDNS(0) is disabled, the query has an OPT record in the additional
+     * section, with the configured UDP payload size.
      *
      * @param question    Host name and record type/class to be used for the query.
      * @return The DNSMessage containing the query.
      */
     public DNSMessage buildQuery(DNSQuestion question) {
+        return buildQuery(question, ednsPayloadSize > 0);
+    }
+
+    /**
+     * Creates a query for a server, with an OPT record unless EDNS(0) is disabled or the server rejected it before.
+     */
+    private DNSMessage buildQuery(DNSQuestion question, InetAddress server) {
+        return buildQuery(question, ednsPayloadSize > 0 && transport.getServers().supportsEDNS(server));
+    }
+
+    /**
+     * Creates a query in a message taken from the pool of query messages. The message can be returned to the pool
+     * once the exchange is complete; messages that are not returned (e.g., those of the public buildQuery) are simply
+     * garbage collected.
+     */
+    private DNSMessage buildQuery(DNSQuestion question, boolean edns) {
+        // Queries for the same question only differ by their ID, so they are copies of a query encoded once
+        byte[] template = (edns ? ednsQueryTemplates : plainQueryTemplates).get(question);
+        DNSMessage message = queryMessages.acquire();
+        message.load(template, template.length);
+        message.setID(ThreadLocalRandom.current().nextInt() & 0xffff);
+        return message;
+    }
+
+    /**
+     * Creates a cache of the templates of the queries advertising a UDP payload size.
+     *
+     * @param payloadSize The payload size in the OPT record of the queries, or 0 for queries without one.
+     */
+    private QueryTemplateCache templatesFor(int payloadSize) {
+        return new QueryTemplateCache(MAX_QUERY_TEMPLATES, question -> encodeQuery(question, payloadSize));
+    }
+
+    /**
+     * Encodes a query with an ID of zero, to be used as the template of the queries for its question.
+     */
+    private byte[] encodeQuery(DNSQuestion question, int payloadSize) {
         // Init message
-        short randomID = (short)random.nextInt();
-        DNSMessage message = new DNSMessage(randomID);
+        DNSMessage message = new DNSMessage((short) 0);
 
         // Set query, pass in false representing that the message is a query
         message.setQR(false);
@@ -281,13 +1250,20 @@ public class DNSLookupService {
         // add question to the message
         message.addQuestion(question);
 
-        return message;
+        // Advertise the largest UDP response we can receive
+        if (payloadSize > 0) {
+            message.addOPT(payloadSize);
+        }
+
+        return message.getUsed();
     }
 
     /**
      * Parses and processes a response received by a nameserver.
      * If the reply contains a non-zero Rcode value, then throw a DNSErrorException.
-     * Adds all resource records found in the response message to the cache.
+     * Adds all resource records found in the response message to the cache. If the reply states that the name does
+     * not exist (NXDOMAIN), or that it has no records of the requested type (NODATA), this negative answer is also
+     * cached, using the SOA record in the authority section to determine its TTL (RFC 2308).
      * Calls methods in the verbose object at appropriate points of the processing sequence. Must be able
      * to properly parse records of the types: A, AAAA, NS, CNAME and MX (the priority field for MX may be ignored). Any
      * other unsupported record type must create a record object with the data represented as a hex string (see method
@@ -298,13 +1274,15 @@ public class DNSLookupService {
      * @throws DNSErrorException if the Rcode value in the reply header is non-zero
      */
     public Set<ResourceRecord> processResponse(DNSMessage message) throws DNSErrorException {
-        // Throw a DNSErrorException when rcode is non-zero
-        if (message.getRcode() != 0) {
+        // Throw a DNSErrorException when rcode is non-zero. NXDOMAIN responses are parsed first, to cache them.
+        if (message.getRcode() != DNSMessage.NOERROR && message.getRcode() != DNSMessage.NXDOMAIN) {
             throw new DNSErrorException("Error code: " + message.getRcode() + ": " + DNSMessage.dnsErrorMessage(message.getRcode()));
         }
 
-        // Init a set to store all resource record received in the response
+        // Init a set to store all resource record received in the response. They are only cached once the whole
+        // response is read, since an error may only be signalled in the OPT record (extended RCODE).
         Set<ResourceRecord> resourceRecords = new HashSet<>();
+        List<ResourceRecord> received = new ArrayList<>();
 
         // Print response header by calling function in verbose
         verbose.printResponseHeaderInfo(message.getID(), message.getAA(), message.getTC(), message.getRcode());
@@ -312,6 +1290,11 @@ public class DNSLookupService {
         // Get number of resource records from answer section, name server records section, and additional records section
         int[] counts = {message.getANCount(), message.getNSCount(), message.getARCount()};
         DNSQuestion question = message.getQuestion();
+        ResourceRecord soa = null;
+        boolean referral = false;
+        boolean selective = selectiveDecoding;
+        boolean answered = false;
+        List<String> nameservers = new ArrayList<>();
         // Loop through the message sections to get resource records
         for (int i = 0; i < counts.length; i++) {
             switch (i) {
@@ -331,24 +1314,267 @@ public class DNSLookupService {
 
             int numRecords = counts[i];
             while (numRecords > 0) {
-                ResourceRecord resourceRecord = message.getRR();
+                DNSMessageReader record = message.nextRR();
+                numRecords--;
+
+                // The OPT pseudo-record only describes the message, and is not a record of the zone
+                if (record.getTypeCode() == RecordType.OPT.getCode()) {
+                    continue;
+                }
+                if (selective && !isNeeded(record, i, answered, nameservers)) {
+                    continue;
+                }
+                ResourceRecord resourceRecord = record.getRecord();
 
                 // Print individual resource record
                 verbose.printIndividualResourceRecord(resourceRecord, resourceRecord.getRecordType().getCode(), resourceRecord.getRecordClass().getCode());
 
-                // Add resource records to cache
-                cache.addResult(resourceRecord);
-
-                // Add resource records to set
+                // Add resource records to set, and keep them in order for the cache
                 resourceRecords.add(resourceRecord);
+                received.add(resourceRecord);
 
-                numRecords--;
+                if (i == 0 && resourceRecord.getRecordType() == question.getRecordType()) {
+                    answered = true;
+                } else if (i == 1 && resourceRecord.getRecordType() == RecordType.SOA) {
+                    soa = resourceRecord;
+                } else if (i == 1 && resourceRecord.getRecordType() == RecordType.NS) {
+                    referral = true;
+                    nameservers.add(resourceRecord.getTextResult());
+                }
+            }
+        }
+
+        // The OPT record, if any, was decoded with the other records
+        int rcode = message.getExtendedRcode();
+        if (rcode != DNSMessage.NOERROR && rcode != DNSMessage.NXDOMAIN) {
+            throw new DNSErrorException("Error code: " + rcode + ": " + DNSMessage.dnsErrorMessage(rcode));
+        }
+
+        // Add resource records to cache
+        for (ResourceRecord resourceRecord : received) {
+            cache.addResult(resourceRecord);
+        }
+
+        if (message.getRcode() == DNSMessage.NXDOMAIN) {
+            if (soa != null) {
+                cacheNegativeResult(question, resourceRecords, soa, DNSCache.NegativeResult.NXDOMAIN);
             }
+            throw new DNSErrorException("Error code: " + message.getRcode() + ": " + DNSMessage.dnsErrorMessage(message.getRcode()));
+        }
+        if (soa != null && !referral) {
+            cacheNegativeResult(question, resourceRecords, soa, DNSCache.NegativeResult.NODATA);
         }
 
         return resourceRecords;
     }
 
+    /**
+     * Decides whether a record must be decoded when responses are decoded selectively. Answers are always needed. The
+     * authority and additional sections are not needed once the question was answered; otherwise the authority
+     * section is needed (for referrals and negative answers), but of the additional section only the addresses of the
+     * nameservers in the authority section are.
+     *
+     * @param record      The reader of the response, positioned on the record.
+     * @param section     The section of the record: 0 for answers, 1 for authority, 2 for additional.
+     * @param answered    Whether the answer section contains records of the type asked for.
+     * @param nameservers The names of the nameservers in the authority section.
+     * @return true if the record must be decoded.
+     */
+    private static boolean isNeeded(DNSMessageReader record, int section, boolean answered, List<String> nameservers) {
+        if (section == 0) return true;
+        if (answered) return false;
+        if (section == 1) return true;
+        if (record.getTypeCode() != RecordType.A.getCode() && record.getTypeCode() != RecordType.AAAA.getCode()) {
+            return false;
+        }
+        for (String nameserver : nameservers) {
+            if (record.getName().matches(nameserver)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Caches a negative answer found in a response. If the response contains a chain of CNAME records starting at the
+     * question's name, the negative answer applies to the last name in the chain. Nothing is cached if the response
+     * actually contains an answer for that name.
+     *
+     * @param question  The question in the response.
+     * @param records   All the records in the response.
+     * @param soa       The SOA record in the authority section of the response.
+     * @param result    The kind of negative answer.
+     */
+    private void cacheNegativeResult(DNSQuestion question, Set<ResourceRecord> records, ResourceRecord soa,
+                                     DNSCache.NegativeResult result) {
+        String name = question.getHostName();
+        for (int followed = 0; followed <= MAX_INDIRECTION_LEVEL_NS; followed++) {
+            String next = null;
+            for (ResourceRecord record : records) {
+                if (!record.getHostName().equals(name)) continue;
+                if (record.getRecordType() == question.getRecordType()) return;
+                if (record.getRecordType() == RecordType.CNAME) next = record.getTextResult();
+            }
+            if (next == null) break;
+            name = next;
+        }
+        DNSQuestion negativeQuestion = new DNSQuestion(name, question.getRecordType(), question.getRecordClass());
+        cache.addNegativeResult(negativeQuestion,
+                new ResourceRecord(soa.getQuestion(), negativeTTL(soa), soa.getTextResult()), result);
+    }
+
+    /**
+     * Computes the TTL of a negative answer, as the minimum of the SOA record's TTL and the MINIMUM field of its data
+     * (RFC 2308, section 5). SOA records are kept as a hex string of their data, and MINIMUM is its last 32-bit field.
+     *
+     * @param soa   The SOA record received with the negative answer.
+     * @return The number of seconds the negative answer can be cached.
+     */
+    private static int negativeTTL(ResourceRecord soa) {
+        String data = soa.getTextResult();
+        long ttl = soa.getRemainingTTL();
+        if (data.length() >= 8) {
+            ttl = Math.min(ttl, Long.parseLong(data.substring(data.length() - 8), 16));
+        }
+        return (int) Math.min(ttl, MAX_NEGATIVE_TTL);
+    }
+
+    /**
+     * A query that is sent to one nameserver and, if that nameserver is slow to answer, also to others that can
+     * answer the same question. Each server gets its own query message. The response completes with the first
+     * response received from any of them, or with null once all of them have given up; the queries still waiting
+     * are then cancelled, so the transport stops retransmitting them.
+     * <p>
+     * Hedged queries are sent by the hedge timer thread, so the state is guarded by the object's lock.
+     */
+    private final class HedgedQuery {
+        final CompletableFuture<DNSMessage> response = new CompletableFuture<>();
+        private final DNSQuestion question;
+        private final List<ResourceRecord> candidates;
+        private final Set<InetAddress> excluded;
+        private final AtomicInteger hedges;
+        private final boolean reportRetries;
+        private final List<InetAddress> servers = new ArrayList<>();
+        private final List<CompletableFuture<DNSMessage>> udpQueries = new ArrayList<>();
+        // Queries and hedge timers that have not finished yet
+        private int outstanding;
+
+        HedgedQuery(DNSQuestion question, List<ResourceRecord> candidates, Set<InetAddress> queriedServers,
+                    AtomicInteger hedges, boolean reportRetries) {
+            this.question = question;
+            this.candidates = candidates;
+            this.excluded = new HashSet<>(queriedServers);
+            this.hedges = hedges;
+            this.reportRetries = reportRetries;
+        }
+
+        /**
+         * Sends the query to a server, and schedules a hedged query for when the server should have answered.
+         */
+        synchronized void send(InetAddress server, int attempts) {
+            excluded.add(server);
+            servers.add(server);
+            outstanding++;
+            if (hedges.get() > 0 && hasCandidateLeft()) {
+                try {
+                    getHedgeTimer().schedule(this::hedge, transport.getServers().getHedgeDelay(server),
+                            TimeUnit.MILLISECONDS);
+                    outstanding++;
+                } catch (RejectedExecutionException e) {
+                    // The service is closing
+                }
+            }
+            DNSMessage queryMessage = buildQuery(question, server);
+            CompletableFuture<DNSMessage> udpQuery = sendUDP(queryMessage, question, server, attempts,
+                    reportRetries);
+            udpQueries.add(udpQuery);
+            completeExchange(udpQuery, queryMessage, question, server, attempts, reportRetries)
+                    .whenComplete((responseMessage, error) -> {
+                        queryMessages.release(queryMessage);
+                        finished(error == null ? responseMessage : null);
+                    });
+        }
+
+        /**
+         * Returns the servers the query was sent to.
+         */
+        synchronized List<InetAddress> getServers() {
+            return new ArrayList<>(servers);
+        }
+
+        private boolean hasCandidateLeft() {
+            for (ResourceRecord candidate : candidates) {
+                if (!excluded.contains(candidate.getInetResult())) return true;
+            }
+            return false;
+        }
+
+        private synchronized void hedge() {
+            outstanding--;
+            if (!response.isDone()) {
+                ResourceRecord next = transport.getServers().choose(candidates, excluded);
+                if (next != null && takeHedge()) {
+                    hedged.increment();
+                    send(next.getInetResult(), attemptsFor(candidates, excluded, next.getInetResult()));
+                }
+            }
+            if (outstanding == 0) response.complete(null);
+        }
+
+        private boolean takeHedge() {
+            while (true) {
+                int left = hedges.get();
+                if (left <= 0) return false;
+                if (hedges.compareAndSet(left, left - 1)) return true;
+            }
+        }
+
+        private synchronized void finished(DNSMessage responseMessage) {
+            outstanding--;
+            if (responseMessage != null) {
+                if (response.complete(responseMessage)) {
+                    for (CompletableFuture<DNSMessage> udpQuery : udpQueries) udpQuery.cancel(false);
+                }
+            } else if (outstanding == 0) {
+                response.complete(null);
+            }
+        }
+    }
+
+    /**
+     * A resolution in progress, which other threads asking the same question can wait for. The resolutions it waits
+     * for (those of the addresses of its nameservers) are recorded, guarded by the lock of the waiting map, so that
+     * cycles of resolutions waiting for each other can be avoided.
+     */
+    private static final class Flight {
+        final Thread leader = Thread.currentThread();
+        final CompletableFuture<Collection<ResourceRecord>> results = new CompletableFuture<>();
+        final Set<Flight> dependencies = new HashSet<>();
+
+        Collection<ResourceRecord> await() throws DNSErrorException {
+            try {
+                return results.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof DNSErrorException) throw (DNSErrorException) e.getCause();
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Collections.emptyList();
+            }
+        }
+    }
+
+    /**
+     * A verbose printer that ignores all events, used for background resolutions.
+     */
+    private static final DNSVerbosePrinter SILENT = new DNSVerbosePrinter() {
+        public void printQueryToSend(String protocol, DNSQuestion question, InetAddress server, int transactionID) {}
+        public void printResponseHeaderInfo(int receivedTransactionId, boolean authoritative, boolean tc, int errorCode) {}
+        public void printAnswersHeader(int num_answers) {}
+        public void printNameserversHeader(int num_nameservers) {}
+        public void printAdditionalInfoHeader(int num_additional) {}
+        public void printIndividualResourceRecord(ResourceRecord record, int typeCode, int classCode) {}
+    };
+
     public static class DNSErrorException extends Exception {
         public DNSErrorException(String msg) {
             super(msg);
@@ -1,12 +1,7 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.stream.IntStream;
 
 public class DNSMessage {
     public static final int MAX_DNS_MESSAGE_LENGTH = 512;
@@ -32,9 +27,19 @@ public class DNSMessage {
     public static final int OpcodeShift = 11;
     public static final int ByteMask = 0xff;
     public static final int QUERY = 0;
-    private final Map<String, Integer> nameToPosition = new HashMap<>();
-    private final Map<Integer, String> positionToName = new HashMap<>();
+    public static final int NOERROR = 0;
+    public static final int NXDOMAIN = 3;
+    public static final int FORMERR = 1;
+    public static final int NOTIMP = 4;
+    public static final int BADVERS = 16;
+    public static final int ExtendedRcodeShift = 24;
+    public static final int EDNSVersionShift = 16;
     private final ByteBuffer buffer;
+    private DNSMessageReader reader;
+    private NameCompressor compressor;
+    private int udpPayloadSize = -1;
+    private int extendedRcode;
+    private boolean optFound;
 
     /**
      * Initializes an empty DNSMessage with the given id.
@@ -43,6 +48,29 @@ public class DNSMessage {
      */
     public DNSMessage(short id) {
         this.buffer = ByteBuffer.allocate(MAX_DNS_MESSAGE_LENGTH);
+        reset(id);
+    }
+
+    /**
+     * Initializes a DNSMessage with the first length bytes of the given byte array.
+     *
+     * @param recvd  The byte array containing the received message
+     * @param length The length of the data in the array
+     */
+    public DNSMessage(byte[] recvd, int length) {
+        buffer = ByteBuffer.wrap(recvd, 0, length);
+        buffer.position(DataOffset);
+    }
+
+    /**
+     * Empties the message, so that it can be reused to build another one with the given id. Everything
+     * known about its previous content (names available for compression, decoded OPT fields) is
+     * forgotten.
+     *
+     * @param id The id of the message.
+     */
+    public void reset(short id) {
+        buffer.clear();
         short zero = 0;
         buffer.putShort(IDOffset, id);
         buffer.putShort(CMDOffset, zero);
@@ -51,17 +79,26 @@ public class DNSMessage {
         buffer.putShort(NSCountOffset, zero);
         buffer.putShort(ARCountOffset, zero);
         buffer.position(DataOffset);
+        if (compressor != null) compressor.reset();
+        if (reader != null) reader.reset(buffer.array(), buffer.limit());
+        udpPayloadSize = -1;
+        extendedRcode = 0;
+        optFound = false;
     }
 
     /**
-     * Initializes a DNSMessage with the first length bytes of the given byte array.
+     * Replaces the content of the message with a copy of the first length bytes of an encoded message,
+     * e.g., a query encoded before for the same question.  The position is left at the end of the data,
+     * as if the message had just been built.  The names in the copied data are not used for compression
+     * by names added later.
      *
-     * @param recvd  The byte array containing the received message
-     * @param length The length of the data in the array
+     * @param data   The encoded message
+     * @param length The length of the message
      */
-    public DNSMessage(byte[] recvd, int length) {
-        buffer = ByteBuffer.wrap(recvd, 0, length);
-        buffer.position(DataOffset);
+    public void load(byte[] data, int length) {
+        reset((short) 0);
+        buffer.position(0);
+        buffer.put(data, 0, length);
     }
 
     /**
@@ -184,35 +221,74 @@ public class DNSMessage {
         buffer.putShort(ARCountOffset, (short) count);
     }
 
+    /**
+     * Returns the UDP payload size advertised in the OPT pseudo-record of the message. Only known once the OPT record
+     * has been decoded by getRR.
+     *
+     * @return The payload size, or -1 if no OPT record was decoded.
+     */
+    public int getUDPPayloadSize() {
+        return udpPayloadSize;
+    }
+
+    /**
+     * Returns the full response code: the RCODE in the header, extended with the upper eight bits found in the OPT
+     * pseudo-record, once it has been decoded by nextRR or findOPT (RFC 6891).
+     *
+     * @return The extended response code.
+     */
+    public int getExtendedRcode() {
+        return extendedRcode << 4 | getRcode();
+    }
+
+    /**
+     * Walks the records of the message in place until the OPT pseudo-record is found, and decodes it, without moving
+     * the position of the buffer. Only needed when the records are not read with nextRR; since every record before
+     * the OPT record is walked, it is meant for messages with few records.
+     *
+     * @return Whether the message has an OPT record.
+     */
+    public boolean findOPT() {
+        if (!optFound && getARCount() > 0) {
+            DNSMessageReader reader = reader();
+            reader.setPosition(DataOffset);
+            for (int i = 0; i < getQDCount(); i++) reader.nextQuestion();
+            int records = getANCount() + getNSCount() + getARCount();
+            for (int i = 0; i < records && !optFound; i++) {
+                reader.nextRecord();
+                decodeOPT(reader);
+            }
+        }
+        return optFound;
+    }
+
     /**
      * Return the name at the current position() of the buffer.  This method is provided for you,
      * but you should ensure that you understand what it does and how it does it.
      * <p>
-     * The trick is to keep track of all the positions in the message that contain names, since
-     * they can be the target of a pointer.  We do this by storing the mapping of position to
-     * name in the positionToName map.
+     * The name is read in place by the message's DNSMessageReader, which follows compression pointers
+     * wherever they point (as long as they point backwards), and remembers the names it already
+     * decoded, since they are often the target of several pointers.
      *
      * @return The decoded name
      */
     public String getName() {
-        // Remember the starting position for updating the name cache
-        int start = buffer.position();
-        int len = buffer.get() & ByteMask;
-        if (len == 0) return "";
-        if ((len & PtrMask) == PtrMask) {  // This is a pointer
-            int pointer = ((len & PtrHOBMask) << PtrHOBShift) | (buffer.get() & ByteMask);
-            String suffix = positionToName.get(pointer);
-            assert suffix != null;
-            positionToName.put(start, suffix);
-            return suffix;
-        }
-        byte[] bytes = new byte[len];
-        buffer.get(bytes, 0, len);
-        String label = new String(bytes, StandardCharsets.UTF_8);
-        String suffix = getName();
-        String answer = suffix.isEmpty() ? label : label + "." + suffix;
-        positionToName.put(start, answer);
-        return answer;
+        DNSMessageReader reader = reader();
+        reader.setPosition(buffer.position());
+        String name = reader.nextName().toString();
+        buffer.position(reader.getPosition());
+        return name;
+    }
+
+    /**
+     * Returns a reader over the data of this message, which walks it in place.  The reader's cursor is
+     * independent of the position of the buffer.
+     *
+     * @return The reader of this message
+     */
+    public DNSMessageReader reader() {
+        if (reader == null) reader = new DNSMessageReader(buffer.array(), buffer.limit());
+        return reader;
     }
 
     /**
@@ -290,12 +366,11 @@ public class DNSMessage {
      * @return The decoded question
      */
     public DNSQuestion getQuestion() {
-        String hostname = getName();
-        short type = buffer.getShort();
-        short klass = buffer.getShort();
-        RecordType rtype = RecordType.getByCode(type);
-        RecordClass rklass = RecordClass.getByCode(klass);
-        return new DNSQuestion(hostname, rtype, rklass);
+        DNSMessageReader reader = reader();
+        reader.setPosition(buffer.position());
+        reader.nextQuestion();
+        buffer.position(reader.getPosition());
+        return reader.getQuestion();
     }
 
     /**
@@ -305,65 +380,35 @@ public class DNSMessage {
      * @return The decoded resource record
      */
     public ResourceRecord getRR() {
-        String cname;
-        String mxname;
-        String nsname;
-        byte[] rdata;
-        ResourceRecord rr;
-        String owner = getName();
-        short type = buffer.getShort();
-        short klass = buffer.getShort();
-        int ttl = buffer.getInt();
-        RecordType rtype = RecordType.getByCode(type);
-        RecordClass rklass = RecordClass.getByCode(klass);
-        DNSQuestion question = new DNSQuestion(owner, rtype, rklass);
-        int rdatalen = buffer.getShort() & ShortMask;
-        int startpos = buffer.position();
-        if (rtype == RecordType.A && rklass == RecordClass.IN) {
-            rdata = new byte[4];
-            buffer.get(rdata, 0, 4);
-            InetAddress address;
-            try {
-                address = InetAddress.getByAddress(rdata);
-                rr = new ResourceRecord(question, ttl, address);
-            } catch (UnknownHostException e) {
-                rr = null;
-            }
-        } else if (rtype == RecordType.AAAA && rklass == RecordClass.IN) {
-            rdata = new byte[16];
-            buffer.get(rdata, 0, 16);
-            InetAddress address;
-            try {
-                address = InetAddress.getByAddress(rdata);
-                rr = new ResourceRecord(question, ttl, address);
-            } catch (UnknownHostException e) {
-                rr = null;
-            }
-        } else if (rtype == RecordType.CNAME) {
-            cname = getName();
-            rr = new ResourceRecord(question, ttl, cname);
-        } else if (rtype == RecordType.MX) {
-            //noinspection unused We ignore mx preference fields
-            int pref = buffer.getShort() & ShortMask;
-            mxname = getName();
-            rr = new ResourceRecord(question, ttl, mxname);
-        } else if (rtype == RecordType.NS) {
-            nsname = getName();
-            rr = new ResourceRecord(question, ttl, nsname);
-        } else if (rtype == RecordType.SOA) {
-            rdata = new byte[rdatalen];
-            buffer.get(rdata, 0, rdatalen);
-            String hex = byteArrayToHexString(rdata);
-            rr = new ResourceRecord(question, ttl, hex);
-        } else {
-            rdata = new byte[rdatalen];
-            buffer.get(rdata, 0, rdatalen);
-            String hex = byteArrayToHexString(rdata);
-            rr = new ResourceRecord(question, ttl, hex);
+        return nextRR().getRecord();
+    }
+
+    /**
+     * Moves past the resource record that appears next in the message, without decoding it.  The
+     * returned reader is positioned on the record, so its type and names can be examined in place,
+     * and it can still be decoded with getRecord() until the next record is read.
+     *
+     * @return The reader of this message, positioned on the record
+     */
+    public DNSMessageReader nextRR() {
+        DNSMessageReader reader = reader();
+        reader.setPosition(buffer.position());
+        reader.nextRecord();
+        buffer.position(reader.getPosition());
+        decodeOPT(reader);
+        return reader;
+    }
+
+    /**
+     * Decodes the fields of the OPT pseudo-record, if the reader is positioned on one.
+     */
+    private void decodeOPT(DNSMessageReader reader) {
+        if (reader.getTypeCode() == RecordType.OPT.getCode()) {
+            // The class is the sender's UDP payload size, and the TTL holds the extended RCODE, version and flags
+            udpPayloadSize = reader.getClassCode();
+            extendedRcode = reader.getTTL() >>> ExtendedRcodeShift;
+            optFound = true;
         }
-        int endpos = buffer.position();
-        assert endpos - startpos == rdatalen;
-        return rr;
     }
 
     /**
@@ -374,7 +419,7 @@ public class DNSMessage {
      * @return A string containing the hex value of every byte in the data.
      */
     public static String byteArrayToHexString(byte[] data) {
-        return IntStream.range(0, data.length).mapToObj(i -> String.format("%02x", data[i])).reduce("", String::concat);
+        return DNSMessageReader.toHexString(data, 0, data.length);
     }
 
     /**
@@ -396,31 +441,13 @@ public class DNSMessage {
     /**
      * Add an encoded name to the message. It is added at the current position and uses compression
      * as much as possible.  Compression is accomplished by remembering the position of every added
-     * label.
+     * label, in the message's NameCompressor.
      *
      * @param name The name to be added
      */
     public void addName(String name) {
-        String label;
-        while (name.length() > 0) {
-            Integer offset = nameToPosition.get(name);
-            if (offset != null) {
-                int pointer = offset;
-                pointer |= PtrShortMask;
-                buffer.putShort((short) pointer);
-                return;
-            } else {
-                nameToPosition.put(name, buffer.position());
-                int dot = name.indexOf('.');
-                label = (dot > 0) ? name.substring(0, dot) : name;
-                buffer.put((byte) label.length());
-                for (int j = 0; j < label.length(); j++) {
-                    buffer.put((byte) label.charAt(j));
-                }
-                name = (dot > 0) ? name.substring(dot + 1) : "";
-            }
-        }
-        buffer.put((byte) 0);
+        if (compressor == null) compressor = new NameCompressor();
+        buffer.position(compressor.write(buffer.array(), buffer.position(), buffer.limit(), name));
     }
 
     /**
@@ -505,6 +532,22 @@ public class DNSMessage {
         }
     }
 
+    /**
+     * Add an EDNS(0) OPT pseudo-record (RFC 6891) to the additional section, at the current position. It has the root
+     * as its name, advertises the largest UDP response the sender can receive, and has no options.
+     *
+     * @param payloadSize The UDP payload size, in bytes.
+     */
+    public void addOPT(int payloadSize) {
+        buffer.put((byte) 0);
+        addQType(RecordType.OPT);
+        buffer.putShort((short) payloadSize);
+        // Extended RCODE, version 0, and no flags
+        buffer.putInt(0);
+        buffer.putShort((short) 0);
+        setARCount(getARCount() + 1);
+    }
+
     /**
      * Add an encoded type to the message at the current position.
      *
@@ -539,6 +582,25 @@ public class DNSMessage {
         return res;
     }
 
+    /**
+     * Return the size of the data comprising this message, which is the current position in the buffer.
+     *
+     * @return The length of the message
+     */
+    public int getLength() {
+        return buffer.position();
+    }
+
+    /**
+     * Copy all the data comprising this message into another buffer, at its current position, without
+     * an intermediate array.
+     *
+     * @param destination The buffer that receives the message
+     */
+    public void writeTo(ByteBuffer destination) {
+        destination.put(buffer.array(), 0, buffer.position());
+    }
+
     /**
      * Returns a string representation of a DNS error code.
      *
@@ -556,6 +618,8 @@ public class DNSMessage {
         };
         if (error >= 0 && error < errors.length)
             return errors[error];
+        if (error == BADVERS)
+            return "Bad OPT version";
         return "Invalid error message";
     }
 }
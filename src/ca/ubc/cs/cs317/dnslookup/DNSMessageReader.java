@@ -0,0 +1,459 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A flyweight reader that walks a DNS message in its wire format, without copying it. The reader is a cursor: each
+ * call to nextQuestion or nextRecord decodes the fixed fields of the next entry, and leaves its variable parts where
+ * they are in the message. Names are exposed as Name views (an offset into the message), which can be compared
+ * directly against strings or other names on the wire, and are only decoded into a String when needed.
+ * <p>
+ * Reading through a message allocates nothing; materializing questions and records (getQuestion, getRecord) only
+ * allocates what the resulting objects need. Decoded names are kept in a small table keyed by the position of their
+ * first label, so that a name referred to many times through compression pointers (the owner of an RRset, or a
+ * nameserver and its glue) is decoded once, and consecutive records of the same RRset share their DNSQuestion.
+ * <p>
+ * Names are validated when they are read: each compression pointer must point below every offset already visited
+ * while reading the name (pointing backwards is not enough, since a pointer may go back to a label of the same name),
+ * and names can't be longer than 255 bytes. Malformed names throw an IllegalArgumentException.
+ * <p>
+ * A reader can be reset to another message, so a thread that parses many messages can reuse a single reader. It is
+ * not thread-safe, and the Name views it returns are only valid until the cursor moves.
+ */
+public final class DNSMessageReader {
+
+    private static final int NAME_TABLE_SIZE = 32;
+    private static final int PTR = 0xc0;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private byte[] data;
+    private int limit;
+    private int position;
+
+    private final Name name = new Name();
+    private final Name target = new Name();
+    private int typeCode;
+    private int classCode;
+    private int ttl;
+    private int rdataOffset;
+    private int rdataLength;
+
+    private final int[] nameOffsets = new int[NAME_TABLE_SIZE];
+    private final String[] names = new String[NAME_TABLE_SIZE];
+    private DNSQuestion lastQuestion;
+
+    /**
+     * Creates a reader over the first limit bytes of the given array, positioned after the header.
+     *
+     * @param data  The message in wire format.
+     * @param limit The length of the message.
+     */
+    public DNSMessageReader(byte[] data, int limit) {
+        reset(data, limit);
+    }
+
+    /**
+     * Moves the reader to another message, positioned after its header.
+     *
+     * @param data  The message in wire format.
+     * @param limit The length of the message.
+     */
+    public void reset(byte[] data, int limit) {
+        this.data = data;
+        this.limit = limit;
+        this.position = DNSMessage.DataOffset;
+        Arrays.fill(nameOffsets, -1);
+        Arrays.fill(names, null);
+        lastQuestion = null;
+    }
+
+    public int getID() {
+        return readShort(DNSMessage.IDOffset);
+    }
+
+    public boolean getQR() {
+        return (readShort(DNSMessage.CMDOffset) & DNSMessage.QRMask) != 0;
+    }
+
+    public boolean getAA() {
+        return (readShort(DNSMessage.CMDOffset) & DNSMessage.AAMask) != 0;
+    }
+
+    public boolean getTC() {
+        return (readShort(DNSMessage.CMDOffset) & DNSMessage.TCMask) != 0;
+    }
+
+    public int getRcode() {
+        return readShort(DNSMessage.CMDOffset) & DNSMessage.RcodeMask;
+    }
+
+    public int getQDCount() {
+        return readShort(DNSMessage.QDCountOffset);
+    }
+
+    public int getANCount() {
+        return readShort(DNSMessage.ANCountOffset);
+    }
+
+    public int getNSCount() {
+        return readShort(DNSMessage.NSCountOffset);
+    }
+
+    public int getARCount() {
+        return readShort(DNSMessage.ARCountOffset);
+    }
+
+    /**
+     * @return The offset in the message of the next byte to be read.
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    public void setPosition(int position) {
+        this.position = position;
+    }
+
+    /**
+     * Reads the name at the current position, and moves past it.
+     *
+     * @return A view of the name, valid until the cursor moves again.
+     */
+    public Name nextName() {
+        position = name.read(position);
+        return name;
+    }
+
+    /**
+     * Reads the question at the current position, and moves past it. Its name is then available from getName, and
+     * its type and class from the other getters.
+     */
+    public void nextQuestion() {
+        position = name.read(position);
+        typeCode = readShort(position);
+        classCode = readShort(position + 2);
+        position += 4;
+        ttl = 0;
+        rdataOffset = position;
+        rdataLength = 0;
+    }
+
+    /**
+     * Reads the resource record at the current position, and moves past it. Its owner name is then available from
+     * getName, the name in its data (for NS, CNAME and MX records) from getTarget, and its other fields from the
+     * other getters.
+     */
+    public void nextRecord() {
+        position = name.read(position);
+        typeCode = readShort(position);
+        classCode = readShort(position + 2);
+        ttl = readInt(position + 4);
+        rdataLength = readShort(position + 8);
+        rdataOffset = position + 10;
+        position = rdataOffset + rdataLength;
+        if (position > limit) throw new IllegalArgumentException("Record data beyond the end of the message");
+        if (typeCode == RecordType.NS.getCode() || typeCode == RecordType.CNAME.getCode()) {
+            target.read(rdataOffset);
+        } else if (typeCode == RecordType.MX.getCode()) {
+            target.read(rdataOffset + 2);
+        }
+    }
+
+    /**
+     * @return The name of the current question, or the owner name of the current record.
+     */
+    public Name getName() {
+        return name;
+    }
+
+    /**
+     * @return The name in the data of the current record, if it is an NS, CNAME or MX record.
+     */
+    public Name getTarget() {
+        return target;
+    }
+
+    public int getTypeCode() {
+        return typeCode;
+    }
+
+    public RecordType getRecordType() {
+        return RecordType.getByCode(typeCode);
+    }
+
+    public int getClassCode() {
+        return classCode;
+    }
+
+    public RecordClass getRecordClass() {
+        return RecordClass.getByCode(classCode);
+    }
+
+    public int getTTL() {
+        return ttl;
+    }
+
+    public int getRdataOffset() {
+        return rdataOffset;
+    }
+
+    public int getRdataLength() {
+        return rdataLength;
+    }
+
+    /**
+     * Compares the current question (or record) with a question, without decoding it.
+     *
+     * @param question The question to compare with.
+     * @return true if the name, type and class are those of the question.
+     */
+    public boolean isQuestion(DNSQuestion question) {
+        return getRecordType() == question.getRecordType() && getRecordClass() == question.getRecordClass()
+                && name.matches(question.getHostName());
+    }
+
+    /**
+     * Returns the current question (or the question answered by the current record) as a DNSQuestion. The question
+     * of the previous call is returned again if it is the same.
+     *
+     * @return The question.
+     */
+    public DNSQuestion getQuestion() {
+        RecordType type = getRecordType();
+        RecordClass recordClass = getRecordClass();
+        DNSQuestion last = lastQuestion;
+        if (last != null && last.getRecordType() == type && last.getRecordClass() == recordClass
+                && name.matches(last.getHostName())) {
+            return last;
+        }
+        lastQuestion = new DNSQuestion(name.toString(), type, recordClass);
+        return lastQuestion;
+    }
+
+    /**
+     * Returns the current record as a ResourceRecord. A and AAAA records hold their address, NS, CNAME and MX records
+     * the name in their data, and other records their data as a hex string.
+     *
+     * @return The record.
+     */
+    public ResourceRecord getRecord() {
+        DNSQuestion question = getQuestion();
+        RecordType type = question.getRecordType();
+        if ((type == RecordType.A && rdataLength == 4 || type == RecordType.AAAA && rdataLength == 16)
+                && question.getRecordClass() == RecordClass.IN) {
+            try {
+                return new ResourceRecord(question, ttl,
+                        InetAddress.getByAddress(Arrays.copyOfRange(data, rdataOffset, rdataOffset + rdataLength)));
+            } catch (UnknownHostException e) {
+                return null;
+            }
+        }
+        if (type == RecordType.NS || type == RecordType.CNAME || type == RecordType.MX) {
+            return new ResourceRecord(question, ttl, target.toString());
+        }
+        return new ResourceRecord(question, ttl, toHexString(data, rdataOffset, rdataLength));
+    }
+
+    /**
+     * Returns the hex representation of part of an array, as DNSMessage.byteArrayToHexString does.
+     */
+    static String toHexString(byte[] bytes, int offset, int length) {
+        char[] chars = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            int b = bytes[offset + i] & 0xff;
+            chars[2 * i] = HEX[b >>> 4];
+            chars[2 * i + 1] = HEX[b & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private int readShort(int offset) {
+        if (offset + 2 > limit) throw new IllegalArgumentException("Read beyond the end of the message");
+        return (data[offset] & 0xff) << 8 | (data[offset + 1] & 0xff);
+    }
+
+    private int readInt(int offset) {
+        return readShort(offset) << 16 | readShort(offset + 2);
+    }
+
+    /**
+     * Returns the position of the length byte of the label at the given position, following compression pointers.
+     * Only used on names already validated by Name.read, whose pointers are known not to loop.
+     */
+    private int follow(int offset) {
+        while (true) {
+            if (offset >= limit) throw new IllegalArgumentException("Name beyond the end of the message");
+            int length = data[offset] & 0xff;
+            if ((length & PTR) == 0) {
+                if (offset + 1 + length > limit) throw new IllegalArgumentException("Label beyond the end of the message");
+                return offset;
+            }
+            if ((length & PTR) != PTR || offset + 1 >= limit) throw new IllegalArgumentException("Invalid label");
+            int pointer = (length & ~PTR) << 8 | (data[offset + 1] & 0xff);
+            if (pointer >= offset) throw new IllegalArgumentException("Compression pointer does not point backwards");
+            offset = pointer;
+        }
+    }
+
+    /**
+     * A view of a name in the message. It stays valid until the reader's cursor moves again.
+     */
+    public final class Name {
+        private int offset;
+        private int length;
+
+        private Name() {
+        }
+
+        /**
+         * Points the view to the name at the given offset, and validates it.
+         *
+         * @return The offset just past the name.
+         */
+        private int read(int offset) {
+            this.offset = offset;
+            int end = -1;
+            int current = offset;
+            int lowest = offset;
+            int nameLength = 0;
+            while (true) {
+                if (current >= limit) throw new IllegalArgumentException("Name beyond the end of the message");
+                int labelLength = data[current] & 0xff;
+                if ((labelLength & PTR) != 0) {
+                    if ((labelLength & PTR) != PTR || current + 1 >= limit) {
+                        throw new IllegalArgumentException("Invalid label");
+                    }
+                    if (end < 0) end = current + 2;
+                    // Every pointer must go below all the offsets already visited for this name: a pointer into the
+                    // labels read since the last jump (or to the name itself) would loop
+                    int pointer = (labelLength & ~PTR) << 8 | (data[current + 1] & 0xff);
+                    if (pointer >= lowest) {
+                        throw new IllegalArgumentException("Compression pointer does not point before the name");
+                    }
+                    lowest = current = pointer;
+                    continue;
+                }
+                nameLength += 1 + labelLength;
+                if (nameLength > MAX_NAME_LENGTH) throw new IllegalArgumentException("Name longer than 255 bytes");
+                if (labelLength == 0) {
+                    if (end < 0) end = current + 1;
+                    break;
+                }
+                current += 1 + labelLength;
+            }
+            this.length = end - offset;
+            return end;
+        }
+
+        /**
+         * @return The offset of the name in the message.
+         */
+        public int getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return The number of bytes the name takes in place, including a final compression pointer.
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Compares the name with a host name, without decoding it.
+         *
+         * @param hostName The host name, with labels separated by dots and no final dot.
+         * @return true if the name would decode to the host name.
+         */
+        public boolean matches(String hostName) {
+            int label = follow(offset);
+            int index = 0;
+            int end = hostName.length();
+            while (true) {
+                int labelLength = data[label] & 0xff;
+                if (labelLength == 0) return index == end;
+                if (index > 0) {
+                    if (index >= end || hostName.charAt(index) != '.') return false;
+                    index++;
+                }
+                for (int i = 1; i <= labelLength; i++) {
+                    byte b = data[label + i];
+                    if (b < 0) return toString().equals(hostName);
+                    if (index >= end || hostName.charAt(index) != b) return false;
+                    index++;
+                }
+                label = follow(label + 1 + labelLength);
+            }
+        }
+
+        /**
+         * Compares the name with another name, possibly in another message, without decoding either of them.
+         *
+         * @param other The name to compare with.
+         * @return true if both names would decode to the same host name.
+         */
+        public boolean matches(Name other) {
+            byte[] otherData = other.reader().data;
+            int label = follow(offset);
+            int otherLabel = other.reader().follow(other.offset);
+            while (true) {
+                if (otherData == data && label == otherLabel) return true;
+                int labelLength = data[label] & 0xff;
+                if (labelLength != (otherData[otherLabel] & 0xff)) return false;
+                if (labelLength == 0) return true;
+                for (int i = 1; i <= labelLength; i++) {
+                    byte b = data[label + i];
+                    if (b < 0) return toString().equals(other.toString());
+                    if (b != otherData[otherLabel + i]) return false;
+                }
+                label = follow(label + 1 + labelLength);
+                otherLabel = other.reader().follow(otherLabel + 1 + labelLength);
+            }
+        }
+
+        private DNSMessageReader reader() {
+            return DNSMessageReader.this;
+        }
+
+        /**
+         * Decodes the name. Names that were decoded before by the same reader are not decoded again.
+         *
+         * @return The host name, with labels separated by dots, or an empty string for the root.
+         */
+        @Override
+        public String toString() {
+            int first = follow(offset);
+            int slot = first & (NAME_TABLE_SIZE - 1);
+            for (int i = 0; i < NAME_TABLE_SIZE; i++, slot = (slot + 1) & (NAME_TABLE_SIZE - 1)) {
+                if (nameOffsets[slot] == first) return names[slot];
+                if (nameOffsets[slot] < 0) {
+                    nameOffsets[slot] = first;
+                    names[slot] = decode(first);
+                    return names[slot];
+                }
+            }
+            return decode(first);
+        }
+
+        private String decode(int label) {
+            int size = 0;
+            for (int current = label; (data[current] & 0xff) != 0; current = follow(current + 1 + (data[current] & 0xff))) {
+                size += (size > 0 ? 1 : 0) + (data[current] & 0xff);
+            }
+            if (size == 0) return "";
+            byte[] bytes = new byte[size];
+            int index = 0;
+            for (int current = label; (data[current] & 0xff) != 0; current = follow(current + 1 + (data[current] & 0xff))) {
+                if (index > 0) bytes[index++] = '.';
+                int labelLength = data[current] & 0xff;
+                System.arraycopy(data, current + 1, bytes, index, labelLength);
+                index += labelLength;
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
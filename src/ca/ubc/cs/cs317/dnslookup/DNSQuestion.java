@@ -12,6 +12,7 @@ public class DNSQuestion implements Comparable<DNSQuestion>, Serializable {
     private final String hostName;
     private final RecordType type;
     private final RecordClass recordClass;
+    private transient int hash;
 
     public DNSQuestion(String hostName, RecordType type, RecordClass recordClass) {
         this.hostName = hostName;
@@ -55,8 +56,17 @@ public class DNSQuestion implements Comparable<DNSQuestion>, Serializable {
         return hostName.equals(that.hostName) && type == that.type && recordClass == that.recordClass;
     }
 
+    /**
+     * Questions are immutable and used as keys in the (concurrent) cache map, so the hash is computed only once. It
+     * is not serialized, since enum hash codes are not stable across virtual machines.
+     */
     @Override
     public int hashCode() {
-        return Objects.hash(hostName, type, recordClass);
+        int h = hash;
+        if (h == 0) {
+            h = Objects.hash(hostName, type, recordClass);
+            hash = h;
+        }
+        return h;
     }
 }
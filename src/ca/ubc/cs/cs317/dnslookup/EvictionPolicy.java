@@ -0,0 +1,399 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides which cached questions are evicted when the cache grows beyond its capacity. The policy follows the
+ * W-TinyLFU design: new entries enter a small LRU window, and entries leaving the window are only admitted into the
+ * main region if they have been used more often (according to a FrequencySketch) than the entry that would have to
+ * be evicted to make room for them. The main region is a segmented LRU, where entries used again after being admitted
+ * are promoted to a protected segment. This keeps popular names cached even when many names are only used once.
+ * <p>
+ * Every entry has a weight (number of records or estimated bytes), and the policy keeps the total weight under the
+ * maximum. Questions can be pinned, in which case they are never chosen for eviction. Each entry also remembers the
+ * RRSet it was last weighed for, so that the cache only removes an evicted entry if its records were not replaced in
+ * the meantime.
+ * <p>
+ * All the bookkeeping is done while holding a lock. Reads do not take the lock: they are recorded in lossy buffers
+ * that are drained by whichever thread next acquires it.
+ */
+class EvictionPolicy {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final double WINDOW_PERCENTAGE = 0.01;
+    private static final double PROTECTED_PERCENTAGE = 0.80;
+    private static final int READ_BUFFER_SIZE = 64;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    private static final int READ_BUFFERS = Integer.highestOneBit(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<DNSQuestion, Node> nodes = new HashMap<>();
+    private final Map<DNSQuestion, Integer> pinned = new HashMap<>();
+    private final Deque window = new Deque();
+    private final Deque probation = new Deque();
+    private final Deque protectedSegment = new Deque();
+    private final ReadBuffer[] readBuffers = new ReadBuffer[READ_BUFFERS];
+    private final FrequencySketch sketch;
+    private final long maximumWeight;
+    private final long maximumWindowWeight;
+    private final long maximumProtectedWeight;
+    private long windowWeight;
+    private long protectedWeight;
+    private long totalWeight;
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong evictionWeight = new AtomicLong();
+
+    /**
+     * Creates a new policy.
+     *
+     * @param maximumWeight   The maximum total weight of all entries.
+     * @param expectedEntries The expected maximum number of entries, used to size the frequency sketch.
+     */
+    EvictionPolicy(long maximumWeight, long expectedEntries) {
+        this.maximumWeight = maximumWeight;
+        this.maximumWindowWeight = Math.max(1, (long) (maximumWeight * WINDOW_PERCENTAGE));
+        this.maximumProtectedWeight = (long) ((maximumWeight - maximumWindowWeight) * PROTECTED_PERCENTAGE);
+        this.sketch = new FrequencySketch(expectedEntries);
+        for (int i = 0; i < readBuffers.length; i++) {
+            readBuffers[i] = new ReadBuffer();
+        }
+    }
+
+    /**
+     * Records that a cached question was read. This never blocks; if the buffer for this thread is full the read is
+     * simply not recorded.
+     *
+     * @param question The question that was read.
+     */
+    void recordRead(DNSQuestion question) {
+        ReadBuffer buffer = readBuffers[(int) Thread.currentThread().getId() & (readBuffers.length - 1)];
+        if (buffer.offer(question) && lock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Records that a question was added to the cache or that its records changed.
+     *
+     * @param question The question whose records were written.
+     * @param records  The records now cached for the question.
+     * @param weight   The new weight of the entry.
+     * @return The questions that must be evicted from the cache to stay within the maximum weight, with the records
+     * they had when they were chosen.
+     */
+    Map<DNSQuestion, RRSet> recordWrite(DNSQuestion question, RRSet records, long weight) {
+        lock.lock();
+        try {
+            drainReadBuffers();
+            sketch.increment(question);
+            Node node = nodes.get(question);
+            if (node == null) {
+                node = new Node(question, records, weight);
+                nodes.put(question, node);
+                window.addLast(node);
+                windowWeight += weight;
+                totalWeight += weight;
+            } else {
+                node.records = records;
+                adjustWeight(node, weight - node.weight);
+                onAccess(node);
+            }
+            return evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Updates the weight of an entry without counting it as a use, e.g., after some of its records expired.
+     *
+     * @param question The question whose records changed.
+     * @param records  The records now cached for the question.
+     * @param weight   The new weight of the entry.
+     */
+    void updateWeight(DNSQuestion question, RRSet records, long weight) {
+        lock.lock();
+        try {
+            Node node = nodes.get(question);
+            if (node != null) {
+                node.records = records;
+                adjustWeight(node, weight - node.weight);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that a question was removed from the cache for any other reason than eviction (e.g., expiration).
+     *
+     * @param question The question that was removed.
+     */
+    void recordRemoval(DNSQuestion question) {
+        lock.lock();
+        try {
+            Node node = nodes.remove(question);
+            if (node != null) {
+                unlink(node);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Prevents a question from being evicted until a matching call to unpin is made. Pins are counted, so the same
+     * question can be pinned by several lookups at once.
+     *
+     * @param question The question to be protected from eviction.
+     */
+    void pin(DNSQuestion question) {
+        lock.lock();
+        try {
+            pinned.merge(question, 1, Integer::sum);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void unpin(DNSQuestion question) {
+        lock.lock();
+        try {
+            pinned.computeIfPresent(question, (q, count) -> count == 1 ? null : count - 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    long getEvictionWeight() {
+        return evictionWeight.get();
+    }
+
+    long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    long getTotalWeight() {
+        lock.lock();
+        try {
+            return totalWeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drainReadBuffers() {
+        for (ReadBuffer buffer : readBuffers) {
+            DNSQuestion question;
+            while ((question = buffer.poll()) != null) {
+                sketch.increment(question);
+                Node node = nodes.get(question);
+                if (node != null) onAccess(node);
+            }
+        }
+    }
+
+    private void onAccess(Node node) {
+        switch (node.queue) {
+            case WINDOW:
+                window.moveToBack(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                node.queue = PROTECTED;
+                protectedSegment.addLast(node);
+                protectedWeight += node.weight;
+                // Demote the least recently used protected entries if the protected segment is now too large
+                while (protectedWeight > maximumProtectedWeight && protectedSegment.first() != node) {
+                    Node demoted = protectedSegment.first();
+                    protectedSegment.remove(demoted);
+                    protectedWeight -= demoted.weight;
+                    demoted.queue = PROBATION;
+                    probation.addLast(demoted);
+                }
+                break;
+            case PROTECTED:
+                protectedSegment.moveToBack(node);
+                break;
+        }
+    }
+
+    /**
+     * Moves entries that overflow the window into the probation segment, then evicts entries until the total weight
+     * is within the maximum. Each eviction compares the oldest entry in probation (the victim) with the entry most
+     * recently moved there from the window (the candidate), and evicts the less frequently used of the two.
+     */
+    private Map<DNSQuestion, RRSet> evict() {
+        while (windowWeight > maximumWindowWeight && window.first() != null) {
+            Node node = window.first();
+            window.remove(node);
+            windowWeight -= node.weight;
+            node.queue = PROBATION;
+            probation.addLast(node);
+        }
+        Map<DNSQuestion, RRSet> evicted = Collections.emptyMap();
+        while (totalWeight > maximumWeight) {
+            Node victim = firstUnpinned(probation, true);
+            Node candidate = firstUnpinned(probation, false);
+            Node loser;
+            if (victim == null) {
+                loser = firstUnpinned(protectedSegment, true);
+                if (loser == null) loser = firstUnpinned(window, true);
+                if (loser == null) break; // Everything left is pinned
+            } else if (victim == candidate) {
+                loser = victim;
+            } else {
+                loser = sketch.frequency(candidate.question) > sketch.frequency(victim.question) ? victim : candidate;
+            }
+            evictionCount.incrementAndGet();
+            evictionWeight.addAndGet(loser.weight);
+            nodes.remove(loser.question);
+            unlink(loser);
+            if (evicted.isEmpty()) evicted = new HashMap<>();
+            evicted.put(loser.question, loser.records);
+        }
+        return evicted;
+    }
+
+    private Node firstUnpinned(Deque deque, boolean fromHead) {
+        for (Node node = fromHead ? deque.first() : deque.last(); node != null;
+             node = fromHead ? deque.next(node) : deque.previous(node)) {
+            if (!pinned.containsKey(node.question)) return node;
+        }
+        return null;
+    }
+
+    private void adjustWeight(Node node, long delta) {
+        node.weight += delta;
+        totalWeight += delta;
+        if (node.queue == WINDOW) windowWeight += delta;
+        else if (node.queue == PROTECTED) protectedWeight += delta;
+    }
+
+    private void unlink(Node node) {
+        adjustWeight(node, -node.weight);
+        switch (node.queue) {
+            case WINDOW:
+                window.remove(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                break;
+            case PROTECTED:
+                protectedSegment.remove(node);
+                break;
+        }
+    }
+
+    private static final class Node {
+        final DNSQuestion question;
+        RRSet records;
+        long weight;
+        int queue = WINDOW;
+        Node previous;
+        Node next;
+
+        Node(DNSQuestion question, RRSet records, long weight) {
+            this.question = question;
+            this.records = records;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * A doubly-linked list of nodes in access order, with the least recently used node first.
+     */
+    private static final class Deque {
+        private Node head;
+        private Node tail;
+
+        Node first() {
+            return head;
+        }
+
+        Node last() {
+            return tail;
+        }
+
+        Node next(Node node) {
+            return node.next;
+        }
+
+        Node previous(Node node) {
+            return node.previous;
+        }
+
+        void addLast(Node node) {
+            node.previous = tail;
+            node.next = null;
+            if (tail == null) head = node;
+            else tail.next = node;
+            tail = node;
+        }
+
+        void remove(Node node) {
+            if (node.previous == null) head = node.next;
+            else node.previous.next = node.next;
+            if (node.next == null) tail = node.previous;
+            else node.next.previous = node.previous;
+            node.previous = null;
+            node.next = null;
+        }
+
+        void moveToBack(Node node) {
+            if (node != tail) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+
+    /**
+     * A fixed-size ring buffer of reads. Writers claim a slot with a single atomic increment and readers (always
+     * holding the policy lock) consume slots in order. When the buffer is full new reads are dropped.
+     */
+    private static final class ReadBuffer {
+        private final AtomicReferenceArray<DNSQuestion> slots = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+        private final AtomicLong writeCounter = new AtomicLong();
+        private volatile long readCounter;
+
+        /**
+         * @return true if the buffer should now be drained.
+         */
+        boolean offer(DNSQuestion question) {
+            long tail = writeCounter.get();
+            long size = tail - readCounter;
+            if (size >= READ_BUFFER_SIZE) return true;
+            if (writeCounter.compareAndSet(tail, tail + 1)) {
+                slots.lazySet((int) (tail & READ_BUFFER_MASK), question);
+                return size + 1 >= READ_BUFFER_SIZE / 2;
+            }
+            return false;
+        }
+
+        DNSQuestion poll() {
+            long head = readCounter;
+            if (head == writeCounter.get()) return null;
+            int index = (int) (head & READ_BUFFER_MASK);
+            DNSQuestion question = slots.get(index);
+            if (question == null) return null; // The writer has claimed the slot but not filled it yet
+            slots.lazySet(index, null);
+            readCounter = head + 1;
+            return question;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A priority queue of cached questions, ordered by the time at which their earliest record expires. It allows the
+ * cache to find expired entries without walking the whole map: only entries that are actually due are ever looked
+ * at, so the cost of expiring records does not depend on the size of the cache.
+ * <p>
+ * A question has at most one deadline, the earliest one it was scheduled for: scheduling it for a later time does
+ * nothing, and a deadline that is too early is harmless, since the cache simply re-checks the question and schedules
+ * it again. Deadlines that were replaced or cancelled (e.g., because the question was evicted) are left in the queue
+ * and skipped when they come up, and the queue is rebuilt once they outnumber the live ones, so the index stays
+ * proportional to the number of cached questions.
+ */
+class ExpiryIndex {
+
+    /**
+     * Maximum number of due entries handled by a single call to expireDue, to keep the cost of any individual cache
+     * access bounded even after a long pause.
+     */
+    private static final int MAX_EXPIRATIONS_PER_CALL = 64;
+
+    private final PriorityQueue<Deadline> queue = new PriorityQueue<>();
+    private final Map<DNSQuestion, Deadline> scheduled = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile long nextDeadline = Long.MAX_VALUE;
+
+    /**
+     * Schedules a question to be checked at the given time, unless it is already scheduled to be checked earlier.
+     *
+     * @param question The cached question.
+     * @param deadline The time at which its earliest record expires, according to the DNSClock.
+     */
+    void schedule(DNSQuestion question, long deadline) {
+        if (deadline == Long.MAX_VALUE) return;
+        lock.lock();
+        try {
+            Deadline existing = scheduled.get(question);
+            if (existing != null && existing.deadline <= deadline) return;
+            Deadline entry = new Deadline(question, deadline);
+            scheduled.put(question, entry);
+            queue.add(entry);
+            if (deadline < nextDeadline) nextDeadline = deadline;
+            compact();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets the deadline of a question, e.g., because it was removed from the cache.
+     *
+     * @param question The question that no longer needs to be checked.
+     */
+    void cancel(DNSQuestion question) {
+        lock.lock();
+        try {
+            if (scheduled.remove(question) != null) compact();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Passes to the given action every question whose deadline is not after the given time. The check for due
+     * entries is a single volatile read, and if another thread is already expiring entries this call returns
+     * immediately instead of waiting for it.
+     *
+     * @param now    The current time, according to the DNSClock.
+     * @param action The action to perform on each question that is due.
+     * @param all    If true, all due entries are handled; otherwise at most MAX_EXPIRATIONS_PER_CALL.
+     */
+    void expireDue(long now, Consumer<DNSQuestion> action, boolean all) {
+        if (nextDeadline > now) return;
+        if (all) lock.lock();
+        else if (!lock.tryLock()) return;
+        try {
+            int count = 0;
+            Deadline head;
+            while ((head = queue.peek()) != null && head.deadline <= now
+                    && (all || count < MAX_EXPIRATIONS_PER_CALL)) {
+                queue.poll();
+                // Replaced and cancelled deadlines are skipped
+                if (scheduled.get(head.question) != head) continue;
+                scheduled.remove(head.question);
+                count++;
+                action.accept(head.question);
+            }
+            nextDeadline = head == null ? Long.MAX_VALUE : head.deadline;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            queue.clear();
+            scheduled.clear();
+            nextDeadline = Long.MAX_VALUE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of deadlines in the queue, including those that were replaced or cancelled.
+     */
+    int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rebuilds the queue from the live deadlines once the replaced and cancelled ones outnumber them. Must be called
+     * while holding the lock.
+     */
+    private void compact() {
+        if (queue.size() <= 2 * scheduled.size() + 64) return;
+        queue.clear();
+        queue.addAll(scheduled.values());
+        Deadline head = queue.peek();
+        nextDeadline = head == null ? Long.MAX_VALUE : head.deadline;
+    }
+
+    private static final class Deadline implements Comparable<Deadline> {
+        final DNSQuestion question;
+        final long deadline;
+
+        Deadline(DNSQuestion question, long deadline) {
+            this.question = question;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int compareTo(Deadline o) {
+            return Long.compare(deadline, o.deadline);
+        }
+    }
+}
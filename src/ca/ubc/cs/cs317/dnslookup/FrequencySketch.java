@@ -0,0 +1,100 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/**
+ * A count-min sketch estimating how often each cached question has been used recently. Every counter takes four bits
+ * (so the estimate saturates at 15), and all counters are halved once the number of increments reaches ten times the
+ * expected number of entries, so the estimate reflects recent popularity rather than all-time popularity.
+ * <p>
+ * This class is not thread-safe; it is only used by EvictionPolicy while holding its lock.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MAX_TABLE_SIZE = 1 << 24;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+
+    /**
+     * Creates a sketch sized for the given number of entries.
+     *
+     * @param expectedEntries The number of entries the cache is expected to hold.
+     */
+    FrequencySketch(long expectedEntries) {
+        int entries = (int) Math.min(Math.max(expectedEntries, 16), MAX_TABLE_SIZE);
+        this.table = new long[Integer.highestOneBit(entries - 1) << 1];
+        this.tableMask = table.length - 1;
+        this.sampleSize = 10 * entries;
+    }
+
+    /**
+     * Returns the estimated number of recent uses of the given question, between 0 and 15.
+     *
+     * @param question The question to be looked up.
+     * @return The estimated frequency.
+     */
+    int frequency(DNSQuestion question) {
+        int hash = spread(question.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records one use of the given question. Counters are halved when the sample size is reached.
+     *
+     * @param question The question that was used.
+     */
+    void increment(DNSQuestion question) {
+        int hash = spread(question.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size - (odd >>> 2)) >>> 1;
+    }
+
+    private int indexOf(int item, int i) {
+        long hash = (item + SEEDS[i]) * SEEDS[i];
+        hash += hash >>> 32;
+        return ((int) hash) & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
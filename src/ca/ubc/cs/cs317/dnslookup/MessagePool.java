@@ -0,0 +1,65 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A pool of messages used to build queries, so that the message (and its buffer) of a query that was answered can be
+ * reused for the next one instead of being allocated for every query. It works like BufferPool: a fixed array of
+ * slots, from which messages are taken and to which they are returned with compare-and-set. A message is allocated
+ * when the pool is empty, and dropped when it is returned to a full pool.
+ */
+final class MessagePool {
+
+    private final AtomicReferenceArray<DNSMessage> slots;
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param size The maximum number of messages kept in the pool.
+     */
+    MessagePool(int size) {
+        this.slots = new AtomicReferenceArray<>(size);
+    }
+
+    /**
+     * Takes a message from the pool, or allocates a new one if the pool is empty.
+     *
+     * @return A message whose content must be replaced (with reset or load) before it is used.
+     */
+    DNSMessage acquire() {
+        int size = slots.length();
+        int start = ThreadLocalRandom.current().nextInt(size);
+        for (int i = 0; i < size; i++) {
+            int slot = (start + i) % size;
+            DNSMessage message = slots.get(slot);
+            if (message != null && slots.compareAndSet(slot, message, null)) return message;
+        }
+        return new DNSMessage((short) 0);
+    }
+
+    /**
+     * Returns a message to the pool. The message must not be used afterwards.
+     *
+     * @param message A message taken from this pool.
+     */
+    void release(DNSMessage message) {
+        int size = slots.length();
+        int start = ThreadLocalRandom.current().nextInt(size);
+        for (int i = 0; i < size; i++) {
+            int slot = (start + i) % size;
+            if (slots.get(slot) == null && slots.compareAndSet(slot, null, message)) return;
+        }
+    }
+
+    /**
+     * @return The number of messages currently in the pool.
+     */
+    int available() {
+        int count = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) != null) count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,178 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.BufferOverflowException;
+import java.util.Arrays;
+
+/**
+ * Encodes names into a message, with compression (RFC 1035, section 4.1.4). Every name suffix written to the message
+ * is remembered in a hash table, keyed by a hash of its labels and holding its position. To write a name, the hashes
+ * of all its suffixes are computed in one pass from its last label, and the longest suffix already in the message is
+ * found by comparing the candidates directly with the bytes of the message; the labels before it are copied, and the
+ * suffix is replaced by a pointer. No intermediate strings are built.
+ * <p>
+ * Labels are written one byte per character, like the rest of DNSMessage. A compressor belongs to a single message,
+ * and must be reset when the message is reused.
+ */
+final class NameCompressor {
+
+    private static final int MAX_POINTER = 0x3fff;
+    private static final int MAX_LABELS = 128;
+    private static final int MAX_LABEL_LENGTH = 63;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private int[] positions = new int[INITIAL_CAPACITY];
+    private int size;
+    private final int[] labelStarts = new int[MAX_LABELS];
+    private final int[] labelEnds = new int[MAX_LABELS];
+    private final int[] suffixHashes = new int[MAX_LABELS];
+
+    NameCompressor() {
+        Arrays.fill(positions, -1);
+    }
+
+    /**
+     * Forgets all the names written so far.
+     */
+    void reset() {
+        Arrays.fill(positions, -1);
+        size = 0;
+    }
+
+    /**
+     * Writes a name at the given position, using a pointer for its longest suffix already in the message.
+     *
+     * @param data     The message.
+     * @param position The position where the name is written.
+     * @param limit    The position past which nothing can be written.
+     * @param name     The name, with labels separated by dots.
+     * @return The position just past the name.
+     */
+    int write(byte[] data, int position, int limit, String name) {
+        int count = split(name);
+        int hash = 0;
+        for (int i = count - 1; i >= 0; i--) {
+            hash = hash(name, labelStarts[i], labelEnds[i], hash);
+            suffixHashes[i] = hash;
+        }
+        int match = count;
+        int target = -1;
+        for (int i = 0; i < count && target < 0; i++) {
+            target = find(data, name, i, count);
+            if (target >= 0) match = i;
+        }
+        for (int i = 0; i < match; i++) {
+            int length = labelEnds[i] - labelStarts[i];
+            if (position + 1 + length > limit) throw new BufferOverflowException();
+            if (position <= MAX_POINTER) add(suffixHashes[i], position);
+            data[position++] = (byte) length;
+            for (int j = labelStarts[i]; j < labelEnds[i]; j++) {
+                data[position++] = (byte) name.charAt(j);
+            }
+        }
+        if (target >= 0) {
+            if (position + 2 > limit) throw new BufferOverflowException();
+            data[position++] = (byte) (DNSMessage.PtrMask | target >> DNSMessage.PtrHOBShift);
+            data[position++] = (byte) target;
+        } else {
+            if (position + 1 > limit) throw new BufferOverflowException();
+            data[position++] = 0;
+        }
+        return position;
+    }
+
+    /**
+     * Finds the labels of a name.
+     *
+     * @return The number of labels.
+     */
+    private int split(String name) {
+        int count = 0;
+        int start = 0;
+        int length = name.length();
+        while (start < length) {
+            int dot = name.indexOf('.', start);
+            int end = dot < 0 ? length : dot;
+            if (count == MAX_LABELS) throw new IllegalArgumentException("Too many labels in " + name);
+            if (end - start > MAX_LABEL_LENGTH) throw new IllegalArgumentException("Label too long in " + name);
+            labelStarts[count] = start;
+            labelEnds[count] = end;
+            count++;
+            start = end + 1;
+        }
+        return count;
+    }
+
+    private static int hash(String name, int start, int end, int suffixHash) {
+        int hash = suffixHash * 31 + (end - start);
+        for (int i = start; i < end; i++) {
+            hash = hash * 31 + (byte) name.charAt(i);
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the position of the suffix of a name starting at its label first, or -1 if it is not in the message.
+     */
+    private int find(byte[] data, String name, int first, int count) {
+        int hash = suffixHashes[first];
+        int mask = positions.length - 1;
+        for (int slot = mix(hash) & mask; positions[slot] >= 0; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash && matches(data, positions[slot], name, first, count)) return positions[slot];
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the labels of a name, from its label first, with the name at a position in the message.
+     */
+    private boolean matches(byte[] data, int position, String name, int first, int count) {
+        for (int i = first; i < count; i++) {
+            position = follow(data, position);
+            int length = labelEnds[i] - labelStarts[i];
+            if ((data[position] & DNSMessage.ByteMask) != length) return false;
+            for (int j = 0; j < length; j++) {
+                if (data[position + 1 + j] != (byte) name.charAt(labelStarts[i] + j)) return false;
+            }
+            position += 1 + length;
+        }
+        return data[follow(data, position)] == 0;
+    }
+
+    /**
+     * Follows the pointers at a position. All the pointers were written by this compressor, so they point backwards.
+     */
+    private static int follow(byte[] data, int position) {
+        while ((data[position] & DNSMessage.PtrMask) == DNSMessage.PtrMask) {
+            position = (data[position] & DNSMessage.PtrHOBMask) << DNSMessage.PtrHOBShift
+                    | (data[position + 1] & DNSMessage.ByteMask);
+        }
+        return position;
+    }
+
+    private void add(int hash, int position) {
+        if (2 * (size + 1) > positions.length) grow();
+        int mask = positions.length - 1;
+        int slot = mix(hash) & mask;
+        while (positions[slot] >= 0) slot = (slot + 1) & mask;
+        hashes[slot] = hash;
+        positions[slot] = position;
+        size++;
+    }
+
+    private void grow() {
+        int[] oldHashes = hashes;
+        int[] oldPositions = positions;
+        hashes = new int[oldHashes.length * 2];
+        positions = new int[oldPositions.length * 2];
+        Arrays.fill(positions, -1);
+        size = 0;
+        for (int i = 0; i < oldPositions.length; i++) {
+            if (oldPositions[i] >= 0) add(oldHashes[i], oldPositions[i]);
+        }
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
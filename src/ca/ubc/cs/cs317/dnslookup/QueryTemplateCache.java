@@ -0,0 +1,55 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Encoded queries, by question. A query for a question is the same every time, except for its transaction ID, so it
+ * is encoded once (with an ID of zero) and later queries for the same question are copies of it with their own ID.
+ * A cache only holds queries encoded the same way (e.g., with the same OPT record); when that changes, a new cache is
+ * used instead of emptying this one, so that no template encoded the old way can be added to it afterwards.
+ * <p>
+ * The cache is bounded: once it holds its capacity, it is emptied and starts over, which costs one encoding per
+ * question asked again, and keeps the common case (a lookup) to a single hash map access. Templates are only added
+ * while holding the lock of the cache, so the capacity is never exceeded.
+ */
+final class QueryTemplateCache {
+
+    private final int capacity;
+    private final Function<DNSQuestion, byte[]> encoder;
+    private final ConcurrentMap<DNSQuestion, byte[]> templates = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param capacity The maximum number of templates kept.
+     * @param encoder  Encodes a query for a question, with an ID of zero.
+     */
+    QueryTemplateCache(int capacity, Function<DNSQuestion, byte[]> encoder) {
+        this.capacity = capacity;
+        this.encoder = encoder;
+    }
+
+    /**
+     * Returns the template for a question, encoding it if there is none.
+     *
+     * @param question The question.
+     * @return The encoded query, which must not be modified.
+     */
+    byte[] get(DNSQuestion question) {
+        byte[] template = templates.get(question);
+        if (template != null) return template;
+        synchronized (this) {
+            if (templates.size() >= capacity && !templates.containsKey(question)) templates.clear();
+            return templates.computeIfAbsent(question, encoder);
+        }
+    }
+
+    /**
+     * @return The number of templates kept.
+     */
+    int size() {
+        return templates.size();
+    }
+}
@@ -0,0 +1,318 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.function.IntConsumer;
+
+/**
+ * Sends UDP queries and receives their responses without blocking the threads that make them. A single thread runs a
+ * selector loop over a non-blocking DatagramChannel: it sends the queries handed to it, routes the responses it
+ * receives to the queries waiting for them, and retransmits queries that are not answered in time.
+ * <p>
+ * All the queries share the channel, so responses are matched to queries by transaction ID, by the address they were
+ * received from and by their question (RFC 5452). A response that matches no query in flight (a late response to a
+ * query that was already answered or given up, or a spoofed one) is dropped, and does not use up an attempt of any
+ * query. Responses without a question section can't be matched, so they are dropped too. Responses are matched in
+ * the receive buffer itself, with a DNSMessageReader, and only copied once they match a query.
+ * <p>
+ * The transport also measures how long each server takes to answer, and reports it to its ServerSelector. The time
+ * to wait for each attempt is the retransmission timeout the selector computes for the server, which grows
+ * exponentially with each attempt.
+ * <p>
+ * The query messages are copied once, into direct buffers taken from a pool, from which the channel sends them
+ * without another copy; buffers are returned to the pool once their query is answered or given up. Responses are
+ * received in a single buffer, and only copied when they match a query.
+ * <p>
+ * Each query is represented by a CompletableFuture that is completed with the response, or with null if no response
+ * arrives after all the attempts. Futures are completed on the selector thread, so the code that continues the
+ * resolution must not block. A query whose future is cancelled is not sent again, and is forgotten at its next
+ * deadline.
+ */
+class QueryTransport implements Closeable {
+
+    private static final int POOLED_BUFFERS = 64;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final int maxMessageLength;
+    private final ConcurrentMap<QueryKey, PendingQuery> pending = new ConcurrentHashMap<>();
+    private final Queue<PendingQuery> submitted = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<PendingQuery> timeouts = new PriorityQueue<>(
+            (a, b) -> Long.compare(a.deadline, b.deadline));
+    private final Thread thread;
+    private final ServerSelector servers = new ServerSelector();
+    private final BufferPool queryBuffers = new BufferPool(POOLED_BUFFERS, DNSMessage.MAX_DNS_MESSAGE_LENGTH, true);
+    private volatile boolean closed;
+
+    /**
+     * Opens the channel and starts the selector thread.
+     *
+     * @param maxMessageLength The maximum length of a response.
+     * @throws IOException If the channel or the selector cannot be opened.
+     */
+    QueryTransport(int maxMessageLength) throws IOException {
+        this.maxMessageLength = maxMessageLength;
+        this.selector = Selector.open();
+        this.channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(null);
+        channel.register(selector, SelectionKey.OP_READ);
+        thread = new Thread(this::run, "DNSLookupService query transport");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Sends a query to a nameserver.
+     *
+     * @param query         The query message.
+     * @param question      The question in the query.
+     * @param server        The address of the nameserver.
+     * @param port          The port of the nameserver.
+     * @param attempts      The number of times the query is sent before giving up.
+     * @param beforeAttempt Called on the selector thread just before each attempt is sent, with the number of the
+     *                      attempt (starting at 1).
+     * @return A future completed with the response, or with null if the query was not answered; or null if another
+     * query with the same transaction ID is still in flight to the same server, in which case a new ID must be chosen.
+     */
+    CompletableFuture<DNSMessage> send(DNSMessage query, DNSQuestion question, InetAddress server, int port,
+                                       int attempts, IntConsumer beforeAttempt) {
+        ByteBuffer message = queryBuffers.acquire();
+        query.writeTo(message);
+        message.flip();
+        PendingQuery request = new PendingQuery(new QueryKey(query.getID(), new InetSocketAddress(server, port)),
+                question, server, message, attempts, beforeAttempt);
+        if (closed) {
+            request.future.completeExceptionally(new IOException("Transport is closed"));
+            return request.future;
+        }
+        if (pending.putIfAbsent(request.key, request) != null) {
+            queryBuffers.release(message);
+            return null;
+        }
+        submitted.add(request);
+        selector.wakeup();
+        // The selector thread may have stopped before seeing the query
+        if (closed && submitted.remove(request)) {
+            pending.remove(request.key, request);
+            request.future.completeExceptionally(new IOException("Transport is closed"));
+        }
+        return request.future;
+    }
+
+    /**
+     * Returns the round-trip time estimates of the servers queried through this transport.
+     *
+     * @return The server selector fed by this transport.
+     */
+    ServerSelector getServers() {
+        return servers;
+    }
+
+    /**
+     * Stops the selector thread and closes the channel. Queries still in flight are completed exceptionally.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        // Closing from a continuation (which runs on the selector thread) must not wait for that same thread
+        if (Thread.currentThread() == thread) return;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        ByteBuffer buffer = ByteBuffer.allocate(maxMessageLength);
+        DNSMessageReader reader = new DNSMessageReader(buffer.array(), 0);
+        try {
+            while (!closed) {
+                PendingQuery first = timeouts.peek();
+                long wait = first == null ? 0 : TimeUnit.NANOSECONDS.toMillis(first.deadline - System.nanoTime());
+                if (first == null) selector.select();
+                else if (wait > 0) selector.select(wait);
+                else selector.selectNow();
+                selector.selectedKeys().clear();
+
+                PendingQuery request;
+                while ((request = submitted.poll()) != null) {
+                    transmit(request);
+                }
+                receiveResponses(buffer, reader);
+                retransmitExpired();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // Falls through to fail all pending queries
+        } finally {
+            closed = true;
+            IOException error = new IOException("Transport is closed");
+            for (PendingQuery request : pending.values()) request.future.completeExceptionally(error);
+            for (PendingQuery request : submitted) request.future.completeExceptionally(error);
+            pending.clear();
+            try {
+                channel.close();
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void transmit(PendingQuery request) {
+        // A stray response matching the query may have completed it before its first attempt
+        if (request.message == null) return;
+        request.attempt++;
+        request.timeout = servers.getRetransmissionTimeout(request.address, request.attempt);
+        request.sent = System.nanoTime();
+        request.deadline = request.sent + TimeUnit.MILLISECONDS.toNanos(request.timeout);
+        timeouts.add(request);
+        try {
+            request.beforeAttempt.accept(request.attempt);
+        } catch (RuntimeException e) {
+            complete(request, null, e);
+            return;
+        }
+        // If the datagram cannot be sent (e.g., the socket buffer is full) it is simply lost, and will be sent again
+        // when it times out
+        try {
+            request.message.rewind();
+            channel.send(request.message, request.key.server);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void receiveResponses(ByteBuffer buffer, DNSMessageReader reader) throws IOException {
+        while (true) {
+            buffer.clear();
+            SocketAddress source = channel.receive(buffer);
+            if (source == null) return;
+            int length = buffer.position();
+            if (length < 12) continue;
+            PendingQuery request;
+            try {
+                reader.reset(buffer.array(), length);
+                if (!reader.getQR() || reader.getQDCount() != 1) continue;
+                request = pending.get(new QueryKey(reader.getID(), source));
+                if (request == null) continue;
+                reader.nextQuestion();
+                if (!reader.isQuestion(request.question)) continue;
+            } catch (RuntimeException e) {
+                continue; // Malformed question
+            }
+            // Responses that do not match a query in flight are dropped. The response is parsed again from the
+            // start by the code waiting for it.
+            // Only responses to the first attempt are measured, as retransmissions make the RTT ambiguous
+            if (request.attempt == 1) {
+                servers.recordResponse(request.address,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - request.sent));
+            }
+            complete(request, new DNSMessage(Arrays.copyOf(buffer.array(), length), length), null);
+        }
+    }
+
+    private void retransmitExpired() {
+        long now = System.nanoTime();
+        PendingQuery request;
+        while ((request = timeouts.peek()) != null && request.deadline - now <= 0) {
+            timeouts.poll();
+            if (request.future.isDone()) {
+                forget(request);
+                continue;
+            }
+            servers.recordTimeout(request.address, request.timeout);
+            if (request.attempt < request.attempts) transmit(request);
+            else complete(request, null, null);
+        }
+        // Drop the entries of queries that were answered or cancelled, so that they don't wait for their deadline
+        if (timeouts.size() > 2 * pending.size() + 64) {
+            timeouts.removeIf(r -> {
+                if (!r.future.isDone()) return false;
+                forget(r);
+                return true;
+            });
+        }
+    }
+
+    private void complete(PendingQuery request, DNSMessage response, Throwable error) {
+        forget(request);
+        if (error != null) request.future.completeExceptionally(error);
+        else request.future.complete(response);
+    }
+
+    /**
+     * Stops matching responses to a query, and returns its buffer to the pool. Only called on the selector thread,
+     * once the query will not be sent again.
+     */
+    private void forget(PendingQuery request) {
+        pending.remove(request.key, request);
+        if (request.message != null) {
+            queryBuffers.release(request.message);
+            request.message = null;
+        }
+    }
+
+    private static final class PendingQuery {
+        final QueryKey key;
+        final DNSQuestion question;
+        final InetAddress address;
+        final int attempts;
+        final IntConsumer beforeAttempt;
+        final CompletableFuture<DNSMessage> future = new CompletableFuture<>();
+        ByteBuffer message;
+        int attempt;
+        long timeout;
+        long sent;
+        long deadline;
+
+        PendingQuery(QueryKey key, DNSQuestion question, InetAddress address, ByteBuffer message, int attempts,
+                     IntConsumer beforeAttempt) {
+            this.key = key;
+            this.question = question;
+            this.address = address;
+            this.message = message;
+            this.attempts = attempts;
+            this.beforeAttempt = beforeAttempt;
+        }
+    }
+
+    /**
+     * What identifies the query a response may belong to: its transaction ID and the address of the server. The
+     * question is checked once the query is found.
+     */
+    private static final class QueryKey {
+        final int id;
+        final SocketAddress server;
+
+        QueryKey(int id, SocketAddress server) {
+            this.id = id;
+            this.server = server;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof QueryKey)) return false;
+            QueryKey that = (QueryKey) o;
+            return id == that.id && server.equals(that.server);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * id + server.hashCode();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * An immutable set of resource records cached for a single question. Updates never modify an existing set; they
+ * build a new one that replaces it in the cache map, which lets readers access the records without any locking.
+ * The earliest expiration time among the records is computed once, when the set is built, so the cache can tell
+ * whether any record needs to be removed without looking at the records themselves.
+ * <p>
+ * A set can also represent a negative answer (RFC 2308), i.e., a nameserver's statement that the name does not exist
+ * or has no records of the requested type. Such a set contains only the SOA record from the response, with the TTL
+ * to be used for the negative answer, and never returns any records as results.
+ * <p>
+ * The only mutable state in a set is used for prefetching (the number of times it was read since it was built, and
+ * whether it was the result of a prefetch) and for load balancing (the position at which the next view of the
+ * records starts).
+ */
+final class RRSet {
+    /**
+     * Approximate memory used by a cache entry and by each record, not counting the characters in names and results:
+     * object headers, references, the map node and the question for an entry; the record, its result string and
+     * (possibly) its InetAddress for a record.
+     */
+    private static final int ENTRY_OVERHEAD = 160;
+    private static final int RECORD_OVERHEAD = 120;
+
+    private static final AtomicIntegerFieldUpdater<RRSet> HITS =
+            AtomicIntegerFieldUpdater.newUpdater(RRSet.class, "hits");
+    private static final AtomicIntegerFieldUpdater<RRSet> ROTATION =
+            AtomicIntegerFieldUpdater.newUpdater(RRSet.class, "rotation");
+
+    static final RRSet EMPTY = new RRSet(new ResourceRecord[0]);
+
+    final ResourceRecord[] records;
+    final long earliestExpiration;
+    final long creationTime;
+    final DNSCache.NegativeResult negative;
+    private volatile int hits;
+    private volatile int rotation;
+    volatile boolean prefetched;
+
+    private RRSet(ResourceRecord[] records) {
+        this(records, null, DNSClock.now());
+    }
+
+    private RRSet(ResourceRecord[] records, DNSCache.NegativeResult negative, long creationTime) {
+        this.records = records;
+        this.negative = negative;
+        this.creationTime = creationTime;
+        long earliest = Long.MAX_VALUE;
+        for (ResourceRecord record : records) {
+            earliest = Math.min(earliest, record.getExpirationTime());
+        }
+        this.earliestExpiration = earliest;
+    }
+
+    /**
+     * Returns a new set containing the given record. If an equivalent record is already in this set, it is replaced
+     * only if the new record expires later.
+     *
+     * @param record The record to be added.
+     * @return A set containing the record, or this same set if the record did not change anything.
+     */
+    RRSet withRecord(ResourceRecord record) {
+        // A positive answer always replaces a negative one
+        if (negative != null) return new RRSet(new ResourceRecord[] { record });
+        for (int i = 0; i < records.length; i++) {
+            if (records[i].equals(record)) {
+                if (records[i].getExpirationTime() >= record.getExpirationTime()) return this;
+                ResourceRecord[] updated = records.clone();
+                updated[i] = record;
+                return new RRSet(updated);
+            }
+        }
+        ResourceRecord[] updated = Arrays.copyOf(records, records.length + 1);
+        updated[records.length] = record;
+        return new RRSet(updated);
+    }
+
+    /**
+     * Returns a set representing a negative answer.
+     *
+     * @param soa      The SOA record from the response, with the TTL of the negative answer.
+     * @param negative The kind of negative answer.
+     * @return The new set.
+     */
+    static RRSet negative(ResourceRecord soa, DNSCache.NegativeResult negative) {
+        return new RRSet(new ResourceRecord[] { soa }, negative, DNSClock.now());
+    }
+
+    /**
+     * Returns a set containing only the records that have not expired at the given time.
+     *
+     * @param now The current time, according to the DNSClock.
+     * @return The set of live records, or null if none are left.
+     */
+    RRSet withoutExpired(long now) {
+        if (earliestExpiration > now) return this;
+        List<ResourceRecord> live = new ArrayList<>(records.length);
+        for (ResourceRecord record : records) {
+            if (record.getExpirationTime() > now) live.add(record);
+        }
+        if (live.isEmpty()) return null;
+        // This is still the same answer, so it keeps its prefetching state
+        RRSet set = new RRSet(live.toArray(new ResourceRecord[0]), negative, creationTime);
+        set.hits = hits;
+        set.prefetched = prefetched;
+        return set;
+    }
+
+    /**
+     * Adds to the target collection the records that have not expired yet. Records are checked individually, so a
+     * set that is still waiting to be pruned by the expiry index never returns stale data.
+     *
+     * @param target The collection receiving the records.
+     */
+    void addLiveTo(Collection<ResourceRecord> target) {
+        if (negative != null) return;
+        for (ResourceRecord record : records) {
+            if (!record.isExpired()) target.add(record);
+        }
+    }
+
+    /**
+     * Returns an unmodifiable view of the records that have not expired yet. Each call starts the view one record
+     * further into the set (round-robin), so callers that use the first records spread their load over all of them.
+     * As long as no record has expired, which is the usual case since the expiry index prunes sets when their
+     * records expire, the view is backed by the set's own array and no records are copied.
+     *
+     * @return The live records, or an empty list if there are none or this is a negative answer.
+     */
+    List<ResourceRecord> liveView() {
+        if (negative != null || records.length == 0) return Collections.emptyList();
+        ResourceRecord[] live = records;
+        if (earliestExpiration <= DNSClock.now()) {
+            live = liveRecords();
+            if (live.length == 0) return Collections.emptyList();
+        }
+        if (live.length == 1) return new RecordView(live, 0);
+        return new RecordView(live, (ROTATION.getAndIncrement(this) & Integer.MAX_VALUE) % live.length);
+    }
+
+    private ResourceRecord[] liveRecords() {
+        int count = 0;
+        ResourceRecord[] live = new ResourceRecord[records.length];
+        for (ResourceRecord record : records) {
+            if (!record.isExpired()) live[count++] = record;
+        }
+        return count == live.length ? live : Arrays.copyOf(live, count);
+    }
+
+    /**
+     * Returns an estimate of the number of bytes used by this set and its cache entry.
+     *
+     * @param question The question the set is cached for.
+     * @return The estimated size of the entry, in bytes.
+     */
+    long estimatedSize(DNSQuestion question) {
+        long size = ENTRY_OVERHEAD + question.getHostName().length();
+        for (ResourceRecord record : records) {
+            size += RECORD_OVERHEAD + record.getTextResult().length();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the negative answer represented by this set, if it has not expired.
+     *
+     * @return The kind of negative answer, or null if this set contains regular records.
+     */
+    DNSCache.NegativeResult getNegativeResult() {
+        if (negative == null || records[0].isExpired()) return null;
+        return negative;
+    }
+
+    /**
+     * Records a read of this set.
+     *
+     * @return The number of reads since this set was built, including this one.
+     */
+    int recordHit() {
+        return HITS.incrementAndGet(this);
+    }
+
+    int getHits() {
+        return hits;
+    }
+
+    boolean isEmpty() {
+        return records.length == 0;
+    }
+}
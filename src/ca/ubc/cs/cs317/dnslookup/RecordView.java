@@ -0,0 +1,39 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * An unmodifiable list over an array of records, starting at a given offset and wrapping around to the start of the
+ * array. This is how the cache returns the records of an RRSet: the array is shared with the set (which never
+ * modifies it), and the offset changes on every read, so the records are handed out in round-robin order without
+ * copying or shuffling them.
+ */
+final class RecordView extends AbstractList<ResourceRecord> implements RandomAccess {
+
+    private final ResourceRecord[] records;
+    private final int offset;
+
+    /**
+     * Creates a view over the given records.
+     *
+     * @param records The records, which must not be modified while the view is in use.
+     * @param offset  The index in the array of the first record in the view.
+     */
+    RecordView(ResourceRecord[] records, int offset) {
+        this.records = records;
+        this.offset = offset;
+    }
+
+    @Override
+    public ResourceRecord get(int index) {
+        if (index < 0 || index >= records.length) throw new IndexOutOfBoundsException("Index: " + index);
+        int i = index + offset;
+        return records[i < records.length ? i : i - records.length];
+    }
+
+    @Override
+    public int size() {
+        return records.length;
+    }
+}
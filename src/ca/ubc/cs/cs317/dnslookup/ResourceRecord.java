@@ -2,19 +2,18 @@ package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Serializable;
 import java.net.InetAddress;
-import java.util.Date;
 import java.util.Objects;
 
 /**
  * A resource record corresponds to each individual result returned by a DNS response. It links a DNS question (host
  * name, type and class) to either an IP address (e.g., for A or AAAA records) or a textual response (e.g., for CNAME or
  * NS records). An expiration time is also specified, and computed based on the TTL provided when the record is
- * created.
+ * created. The expiration time is an instant of the DNSClock, so checking it requires no allocation.
  */
 public class ResourceRecord implements Serializable {
 
     private final DNSQuestion question;
-    private Date expirationTime;
+    private long expirationTime;
     private final String textResult;
     private InetAddress inetResult;
 
@@ -28,7 +27,7 @@ public class ResourceRecord implements Serializable {
      */
     public ResourceRecord(DNSQuestion question, int ttl, String result) {
         this.question = question;
-        this.expirationTime = new Date(System.currentTimeMillis() + ((long) ttl * 1000));
+        this.expirationTime = DNSClock.now() + ((long) ttl * 1000);
         this.textResult = result;
         this.inetResult = null;
     }
@@ -70,7 +69,16 @@ public class ResourceRecord implements Serializable {
      * @return The number of seconds, rounded up, until this record expires.
      */
     public long getRemainingTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
+        return (expirationTime - DNSClock.now() + 999) / 1000;
+    }
+
+    /**
+     * The time at which this record expires, as an instant of the DNSClock.
+     *
+     * @return The expiration time of this record.
+     */
+    long getExpirationTime() {
+        return expirationTime;
     }
 
     /**
@@ -80,7 +88,7 @@ public class ResourceRecord implements Serializable {
      * @return true if this record has expired, and false otherwise.
      */
     public boolean isExpired() {
-        return !expirationTime.after(new Date());
+        return expirationTime <= DNSClock.now();
     }
 
     /**
@@ -90,7 +98,7 @@ public class ResourceRecord implements Serializable {
      * @param record Another resource record with potentially new information.
      */
     public void update(ResourceRecord record) {
-        if (this.expirationTime.before(record.expirationTime))
+        if (this.expirationTime < record.expirationTime)
             this.expirationTime = record.expirationTime;
     }
 
@@ -0,0 +1,271 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+/**
+ * Chooses which nameserver to query among those that can answer a question, based on how fast each one has answered
+ * before. For every server address it keeps a smoothed round-trip time (SRTT) and its variance, updated with the
+ * gains of RFC 6298 whenever a response arrives, and increased when a query times out.
+ * <p>
+ * Like BIND and Unbound, most queries go to the server with the lowest SRTT, but a small fraction go to a random
+ * server, so that servers whose estimate is out of date are measured again. Servers that were never measured are
+ * given a small random estimate, so each of them is tried early on. Estimates also decay: the SRTT of a server is
+ * halved for every minute without a new measurement, so a server that was slow (or unreachable) for a while is
+ * eventually given another chance.
+ * <p>
+ * The estimates also determine how long to wait for a response before sending a query again: the retransmission
+ * timeout is SRTT + 4 * RTTVAR (RFC 6298), doubled for every attempt already made, and kept between 100 ms and
+ * 5 s. A server that was never measured gets a timeout of one second.
+ * <p>
+ * When queries are hedged, the delay before asking another server is the time by which a server usually answers,
+ * estimated as SRTT + 2 * RTTVAR (roughly the 95th percentile of its round-trip times), but never more than the
+ * retransmission timeout.
+ * <p>
+ * The selector also remembers which servers rejected queries with EDNS(0), so that they are sent plain queries for
+ * the next hour instead of failing again.
+ */
+public class ServerSelector {
+
+    private static final double EXPLORATION_RATE = 0.05;
+    private static final int MAX_UNKNOWN_RTT = 32;
+    private static final long DECAY_PERIOD = 60000;
+    private static final long MAX_RTT = 120000;
+    private static final int MAX_SERVERS = 4096;
+    private static final long MIN_TIMEOUT = 100;
+    private static final long INITIAL_TIMEOUT = 1000;
+    private static final long MAX_TIMEOUT = 5000;
+    private static final long CLOCK_GRANULARITY = 10;
+    private static final long EDNS_RETRY_INTERVAL = 3600000;
+
+    private final ConcurrentMap<InetAddress, Estimate> servers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<InetAddress, Long> ednsFailures = new ConcurrentHashMap<>();
+
+    /**
+     * Chooses the nameserver to query next.
+     *
+     * @param candidates The A records of the nameservers that can answer the question.
+     * @param excluded   Addresses of nameservers that must not be chosen, e.g., because they were already queried.
+     * @return The A record of the chosen nameserver, or null if all of them are excluded.
+     */
+    public ResourceRecord choose(List<ResourceRecord> candidates, Collection<InetAddress> excluded) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long now = DNSClock.now();
+        boolean explore = random.nextDouble() < EXPLORATION_RATE;
+        ResourceRecord best = null;
+        long bestRtt = Long.MAX_VALUE;
+        int eligible = 0;
+        for (ResourceRecord candidate : candidates) {
+            if (excluded.contains(candidate.getInetResult())) continue;
+            eligible++;
+            if (explore) {
+                // Reservoir sampling picks each eligible server with the same probability
+                if (random.nextInt(eligible) == 0) best = candidate;
+                continue;
+            }
+            Estimate estimate = servers.get(candidate.getInetResult());
+            long rtt = estimate == null ? random.nextInt(MAX_UNKNOWN_RTT) : estimate.effectiveRtt(now);
+            if (rtt < bestRtt) {
+                best = candidate;
+                bestRtt = rtt;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns how long to wait for a response from a server before sending the query again.
+     *
+     * @param server  The address of the nameserver.
+     * @param attempt The number of the attempt, starting at 1.
+     * @return The retransmission timeout, in milliseconds.
+     */
+    public long getRetransmissionTimeout(InetAddress server, int attempt) {
+        Estimate estimate = servers.get(server);
+        long timeout = estimate == null ? INITIAL_TIMEOUT : estimate.retransmissionTimeout();
+        timeout = Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, timeout));
+        int backoff = Math.min(attempt - 1, 16);
+        return Math.min(MAX_TIMEOUT, timeout << backoff);
+    }
+
+    /**
+     * Returns how long to wait for a response from a server before also sending the query to another server.
+     *
+     * @param server The address of the nameserver.
+     * @return The hedging delay, in milliseconds.
+     */
+    public long getHedgeDelay(InetAddress server) {
+        Estimate estimate = servers.get(server);
+        long delay = estimate == null ? INITIAL_TIMEOUT / 2 : estimate.hedgeDelay();
+        return Math.max(CLOCK_GRANULARITY, Math.min(getRetransmissionTimeout(server, 1), delay));
+    }
+
+    /**
+     * Records the round-trip time of a query. Only queries answered on their first attempt should be measured, since
+     * it is not known which attempt a response to a retransmitted query belongs to (Karn's algorithm).
+     *
+     * @param server The address of the nameserver.
+     * @param rtt    The time between sending the query and receiving its response, in milliseconds.
+     */
+    void recordResponse(InetAddress server, long rtt) {
+        estimate(server).sample(rtt, DNSClock.now());
+    }
+
+    /**
+     * Records that an attempt to query a server was not answered in time.
+     *
+     * @param server  The address of the nameserver.
+     * @param timeout The number of milliseconds waited for a response.
+     */
+    void recordTimeout(InetAddress server, long timeout) {
+        estimate(server).timeout(timeout, DNSClock.now());
+    }
+
+    /**
+     * Returns whether queries to a server should include an OPT record.
+     *
+     * @param server The address of the nameserver.
+     * @return false if the server rejected a query with EDNS(0) within the last hour.
+     */
+    public boolean supportsEDNS(InetAddress server) {
+        Long failure = ednsFailures.get(server);
+        if (failure == null) return true;
+        if (DNSClock.now() - failure < EDNS_RETRY_INTERVAL) return false;
+        ednsFailures.remove(server, failure);
+        return true;
+    }
+
+    /**
+     * Records that a server rejected a query because it included an OPT record.
+     *
+     * @param server The address of the nameserver.
+     */
+    void recordEDNSFailure(InetAddress server) {
+        long now = DNSClock.now();
+        if (ednsFailures.size() >= MAX_SERVERS) {
+            ednsFailures.values().removeIf(failure -> now - failure >= EDNS_RETRY_INTERVAL);
+        }
+        ednsFailures.put(server, now);
+    }
+
+    /**
+     * Returns the estimate for a server.
+     *
+     * @param server The address of the nameserver.
+     * @return The current estimate, or null if the server was never queried.
+     */
+    public Estimate getEstimate(InetAddress server) {
+        return servers.get(server);
+    }
+
+    /**
+     * Performs an action for each server that was queried, and its current estimate.
+     *
+     * @param consumer Action to be performed for each server.
+     */
+    public void forEachServer(BiConsumer<InetAddress, Estimate> consumer) {
+        servers.forEach(consumer);
+    }
+
+    private Estimate estimate(InetAddress server) {
+        Estimate estimate = servers.get(server);
+        if (estimate == null) {
+            if (servers.size() >= MAX_SERVERS) prune();
+            estimate = servers.computeIfAbsent(server, s -> new Estimate());
+        }
+        return estimate;
+    }
+
+    /**
+     * Forgets the servers that have not been measured for the longest time, once their estimate has fully decayed.
+     */
+    private void prune() {
+        long now = DNSClock.now();
+        servers.values().removeIf(estimate -> estimate.effectiveRtt(now) == 0);
+    }
+
+    /**
+     * The round-trip time estimate for a nameserver.
+     */
+    public static final class Estimate {
+        private long srtt;
+        private long rttvar;
+        private long samples;
+        private long timeouts;
+        private long lastUpdate;
+
+        private synchronized void sample(long rtt, long now) {
+            if (samples == 0) {
+                srtt = rtt;
+                rttvar = rtt / 2;
+            } else {
+                long current = effectiveRtt(now);
+                rttvar = (3 * rttvar + Math.abs(current - rtt)) / 4;
+                srtt = (7 * current + rtt) / 8;
+            }
+            samples++;
+            lastUpdate = now;
+        }
+
+        private synchronized void timeout(long timeout, long now) {
+            // A server that doesn't answer is treated as if it took at least twice as long as we waited
+            srtt = Math.min(MAX_RTT, Math.max(effectiveRtt(now), timeout) * 2);
+            rttvar = Math.min(MAX_RTT, Math.max(rttvar, timeout));
+            timeouts++;
+            lastUpdate = now;
+        }
+
+        private synchronized long retransmissionTimeout() {
+            return effectiveRtt(DNSClock.now()) + Math.max(CLOCK_GRANULARITY, 4 * rttvar);
+        }
+
+        private synchronized long hedgeDelay() {
+            return effectiveRtt(DNSClock.now()) + 2 * rttvar;
+        }
+
+        private synchronized long effectiveRtt(long now) {
+            long periods = (now - lastUpdate) / DECAY_PERIOD;
+            return periods >= 63 ? 0 : srtt >> periods;
+        }
+
+        /**
+         * @return The smoothed round-trip time, in milliseconds, including the decay since the last update.
+         */
+        public long getSmoothedRtt() {
+            return effectiveRtt(DNSClock.now());
+        }
+
+        /**
+         * @return The round-trip time variation, in milliseconds.
+         */
+        public synchronized long getRttVariance() {
+            return rttvar;
+        }
+
+        /**
+         * @return The number of responses measured.
+         */
+        public synchronized long getSampleCount() {
+            return samples;
+        }
+
+        /**
+         * @return The number of attempts that were not answered in time.
+         */
+        public synchronized long getTimeoutCount() {
+            return timeouts;
+        }
+
+        /**
+         * @return The number of milliseconds since the estimate was last updated.
+         */
+        public synchronized long getAge() {
+            return DNSClock.now() - lastUpdate;
+        }
+    }
+}
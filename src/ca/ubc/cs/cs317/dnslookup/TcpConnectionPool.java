@@ -0,0 +1,256 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Persistent TCP connections to nameservers (RFC 7766), used only to repeat queries whose response was truncated
+ * over UDP. Instead of opening a connection for every query, one connection per server is kept open and reused.
+ * <p>
+ * Queries are pipelined: a query is written as soon as it is sent, even if others are still waiting for their
+ * response on the same connection. Responses are matched to queries by transaction ID and question, so the server
+ * may answer them in any order. Each connection has a thread that connects to the server and then reads the
+ * responses; the queries sent before the connection is established are written once it is.
+ * <p>
+ * A connection is closed once it has been idle (no queries sent and no responses received) for the idle timeout,
+ * and also when queries have waited that long without any response, in which case they fail. If the server closes a
+ * connection while queries are waiting on it, as servers may do with connections they consider idle, those queries
+ * are sent once more on a new connection.
+ */
+class TcpConnectionPool implements Closeable {
+
+    private final int idleTimeout;
+    private final ConcurrentMap<InetSocketAddress, Connection> connections = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param idleTimeout The number of milliseconds after which an idle connection is closed.
+     */
+    TcpConnectionPool(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Sends a query to a nameserver, on the connection to that server if there is one, or on a new one.
+     *
+     * @param query    The query message.
+     * @param question The question in the query.
+     * @param server   The address of the nameserver.
+     * @param port     The port of the nameserver.
+     * @return A future completed with the response, or exceptionally if the connection fails; or null if another
+     * query with the same transaction ID is waiting on the connection, in which case a new ID must be chosen.
+     */
+    CompletableFuture<DNSMessage> send(DNSMessage query, DNSQuestion question, InetAddress server, int port) {
+        PendingQuery request = new PendingQuery(query.getID(), question, query.getUsed());
+        return submit(request, new InetSocketAddress(server, port)) ? request.future : null;
+    }
+
+    /**
+     * Returns the number of connections currently open (or being opened).
+     *
+     * @return The number of connections.
+     */
+    int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Closes all the connections. Queries still waiting are completed exceptionally.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Connection connection : connections.values()) connection.shutdown();
+    }
+
+    /**
+     * Hands a query to the connection to a server, opening one if needed.
+     *
+     * @return false if another query with the same ID is waiting on the connection.
+     */
+    private boolean submit(PendingQuery request, InetSocketAddress server) {
+        while (true) {
+            if (closed) {
+                request.future.completeExceptionally(new IOException("Connection pool is closed"));
+                return true;
+            }
+            Connection connection = connections.get(server);
+            if (connection == null) {
+                Connection created = new Connection(server);
+                connection = connections.putIfAbsent(server, created);
+                if (connection == null) {
+                    connection = created;
+                    created.start();
+                }
+            }
+            switch (connection.submit(request)) {
+                case SENT:
+                    return true;
+                case DUPLICATE:
+                    return false;
+                default:
+                    // The connection was just closed; try again with a new one
+                    connections.remove(server, connection);
+            }
+        }
+    }
+
+    private enum SubmitResult { SENT, DUPLICATE, CLOSED }
+
+    /**
+     * A connection to a server, and the queries waiting for a response on it.
+     */
+    private final class Connection {
+        private final InetSocketAddress server;
+        private final Socket socket = new Socket();
+        private final Map<Integer, PendingQuery> pending = new HashMap<>();
+        private final List<PendingQuery> unsent = new ArrayList<>();
+        private DataOutputStream output;
+        private long lastActivity = System.nanoTime();
+        private boolean closed;
+
+        Connection(InetSocketAddress server) {
+            this.server = server;
+        }
+
+        void start() {
+            Thread thread = new Thread(this::run, "DNSLookupService TCP connection to " + server);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        synchronized SubmitResult submit(PendingQuery request) {
+            if (closed) return SubmitResult.CLOSED;
+            if (pending.putIfAbsent(request.id, request) != null) return SubmitResult.DUPLICATE;
+            lastActivity = System.nanoTime();
+            if (output == null) unsent.add(request);
+            else write(request);
+            return SubmitResult.SENT;
+        }
+
+        /**
+         * Writes a query, with its length prefix, in a single segment. Only called while holding the lock.
+         */
+        private void write(PendingQuery request) {
+            try {
+                output.writeShort(request.message.length);
+                output.write(request.message);
+                output.flush();
+            } catch (IOException e) {
+                // The reading thread sees the failure too, and takes care of the waiting queries
+                shutdown();
+            }
+        }
+
+        private void run() {
+            Exception failure = null;
+            boolean connected = false;
+            try {
+                socket.connect(server, idleTimeout);
+                socket.setSoTimeout(idleTimeout);
+                socket.setTcpNoDelay(true);
+                DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DNSMessageReader reader = new DNSMessageReader(new byte[0], 0);
+                synchronized (this) {
+                    output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    for (PendingQuery request : unsent) write(request);
+                    unsent.clear();
+                }
+                connected = true;
+                while (true) {
+                    int length;
+                    try {
+                        length = input.readUnsignedShort();
+                    } catch (SocketTimeoutException e) {
+                        synchronized (this) {
+                            if (System.nanoTime() - lastActivity < idleTimeout * 1000000L) continue;
+                            if (pending.isEmpty()) return; // Idle
+                        }
+                        throw e;
+                    }
+                    byte[] data = new byte[length];
+                    input.readFully(data);
+                    reader.reset(data, length);
+                    if (length < 12 || reader.getQDCount() != 1) continue;
+                    reader.nextQuestion();
+                    PendingQuery request;
+                    synchronized (this) {
+                        lastActivity = System.nanoTime();
+                        request = pending.get(reader.getID());
+                        if (request == null || !reader.isQuestion(request.question)) continue;
+                        pending.remove(request.id);
+                    }
+                    // The response is parsed again from the start by the code waiting for it
+                    request.future.complete(new DNSMessage(data, length));
+                }
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            } finally {
+                finish(failure, connected);
+            }
+        }
+
+        /**
+         * Closes the socket, so that the reading thread stops.
+         */
+        void shutdown() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        /**
+         * Closes the connection, and resends or fails the queries still waiting on it.
+         */
+        private void finish(Exception failure, boolean connected) {
+            List<PendingQuery> orphans;
+            synchronized (this) {
+                closed = true;
+                orphans = new ArrayList<>(pending.values());
+                pending.clear();
+                unsent.clear();
+            }
+            connections.remove(server, this);
+            shutdown();
+            // Queries that were not answered because the server closed the connection are tried again once, but not
+            // those that timed out, or if the server could not be reached at all
+            boolean retry = connected && !(failure instanceof SocketTimeoutException);
+            IOException error = failure instanceof IOException ? (IOException) failure
+                    : new IOException("Connection to " + server + " closed", failure);
+            for (PendingQuery request : orphans) {
+                if (retry && !request.retried) {
+                    request.retried = true;
+                    if (TcpConnectionPool.this.submit(request, server)) continue;
+                }
+                request.future.completeExceptionally(error);
+            }
+        }
+    }
+
+    private static final class PendingQuery {
+        final int id;
+        final DNSQuestion question;
+        final byte[] message;
+        final CompletableFuture<DNSMessage> future = new CompletableFuture<>();
+        boolean retried;
+
+        PendingQuery(int id, DNSQuestion question, byte[] message) {
+            this.id = id;
+            this.question = question;
+            this.message = message;
+        }
+    }
+}
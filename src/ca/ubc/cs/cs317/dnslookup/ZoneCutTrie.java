@@ -0,0 +1,207 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A trie of the zone cuts (names with cached NS records) known to the cache, keyed by labels in reverse order: the
+ * root node is the root zone, its children are top-level domains, and so on. Each node holds the NS RRSet currently
+ * cached for its name, if any.
+ * <p>
+ * Finding the deepest known zone cut for a name is done in a single walk from the last label of the name to the
+ * first, comparing labels directly against the characters of the name, so no substrings or questions are created.
+ * <p>
+ * Lookups never lock. Changes are made while holding the trie's lock: children are stored in open-addressing tables
+ * whose slots are written atomically, and a table is only replaced (when it grows or a child is removed) after it has
+ * been fully built. A zone whose records are removed has its RRSet cleared, and its node is removed along with any
+ * of its ancestors left without records or children, so the trie only holds the paths to cached zones.
+ */
+class ZoneCutTrie {
+
+    private final Node root = new Node(DNSCache.rootQuestion, 0);
+
+    /**
+     * Returns the node of the deepest zone cut that is a suffix of the given name (including the name itself)
+     * and still has unexpired NS records.
+     *
+     * @param name The host name being resolved.
+     * @return The node of the deepest zone cut, or null if not even the root zone has live NS records.
+     */
+    Node findDeepest(String name) {
+        Node node = root;
+        Node deepest = root.hasLiveRecords() ? root : null;
+        int end = name.length();
+        while (end > 0) {
+            int start = name.lastIndexOf('.', end - 1) + 1;
+            node = node.find(name, start, end - start, hash(name, start, end));
+            if (node == null) break;
+            if (node.hasLiveRecords()) deepest = node;
+            end = start - 1;
+        }
+        return deepest;
+    }
+
+    /**
+     * Sets the NS RRSet of a zone, creating its node if necessary.
+     *
+     * @param question The NS question for the zone.
+     * @param records  The RRSet cached for the question, or null if it was removed from the cache.
+     */
+    synchronized void set(DNSQuestion question, RRSet records) {
+        String name = question.getHostName();
+        List<Node> path = new ArrayList<>();
+        Node node = root;
+        int end = name.length();
+        while (end > 0) {
+            int start = name.lastIndexOf('.', end - 1) + 1;
+            int hash = hash(name, start, end);
+            Node child = node.find(name, start, end - start, hash);
+            if (child == null) {
+                if (records == null) return;
+                child = node.add(start == 0 ? question : DNSCache.NSQuestion(name.substring(start)), hash);
+            }
+            path.add(node);
+            node = child;
+            end = start - 1;
+        }
+        node.records = records;
+        if (records != null) return;
+        // Remove the nodes that no longer lead to a cached zone, from the deepest one up
+        for (int i = path.size() - 1; i >= 0 && node.records == null && node.childCount == 0; i--) {
+            Node parent = path.get(i);
+            parent.remove(node);
+            node = parent;
+        }
+    }
+
+    /**
+     * Returns the number of zones in the trie, not counting the root. Zones without records are included when they
+     * are an ancestor of a zone that has some.
+     *
+     * @return The number of nodes in the trie, other than the root.
+     */
+    synchronized int size() {
+        return root.descendants();
+    }
+
+    private static int hash(String name, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + name.charAt(i);
+        }
+        return h;
+    }
+
+    /**
+     * A zone in the trie. Its label is the first label of its name.
+     */
+    static final class Node {
+        private static final int INITIAL_CAPACITY = 4;
+
+        final DNSQuestion question;
+        private final int labelHash;
+        private final int labelLength;
+        volatile RRSet records;
+        private volatile AtomicReferenceArray<Node> children;
+        private int childCount;
+
+        private Node(DNSQuestion question, int labelHash) {
+            this.question = question;
+            this.labelHash = labelHash;
+            String name = question.getHostName();
+            int dot = name.indexOf('.');
+            this.labelLength = dot >= 0 ? dot : name.length();
+        }
+
+        private boolean hasLiveRecords() {
+            RRSet set = records;
+            if (set == null || set.negative != null) return false;
+            for (ResourceRecord record : set.records) {
+                if (!record.isExpired()) return true;
+            }
+            return false;
+        }
+
+        private boolean matches(String name, int start, int length, int hash) {
+            return labelHash == hash && labelLength == length
+                    && question.getHostName().regionMatches(0, name, start, length);
+        }
+
+        private Node find(String name, int start, int length, int hash) {
+            AtomicReferenceArray<Node> table = children;
+            if (table == null) return null;
+            int mask = table.length() - 1;
+            for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+                Node child = table.get(i);
+                if (child == null) return null;
+                if (child.matches(name, start, length, hash)) return child;
+            }
+        }
+
+        /**
+         * Adds a child node; only called while holding the trie's lock. Tables are kept at most half full.
+         */
+        private Node add(DNSQuestion question, int hash) {
+            Node child = new Node(question, hash);
+            AtomicReferenceArray<Node> table = children;
+            if (table == null) {
+                table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+            } else if ((childCount + 1) * 2 > table.length()) {
+                AtomicReferenceArray<Node> larger = new AtomicReferenceArray<>(table.length() * 2);
+                for (int i = 0; i < table.length(); i++) {
+                    Node existing = table.get(i);
+                    if (existing != null) insert(larger, existing);
+                }
+                table = larger;
+            }
+            insert(table, child);
+            children = table;
+            childCount++;
+            return child;
+        }
+
+        /**
+         * Removes a child node; only called while holding the trie's lock. The table is replaced by a copy without
+         * the child, since moving entries within a table could hide them from concurrent lookups.
+         */
+        private void remove(Node child) {
+            AtomicReferenceArray<Node> table = children;
+            if (childCount == 1) {
+                children = null;
+            } else {
+                AtomicReferenceArray<Node> copy = new AtomicReferenceArray<>(table.length());
+                for (int i = 0; i < table.length(); i++) {
+                    Node existing = table.get(i);
+                    if (existing != null && existing != child) insert(copy, existing);
+                }
+                children = copy;
+            }
+            childCount--;
+        }
+
+        private int descendants() {
+            AtomicReferenceArray<Node> table = children;
+            int count = 0;
+            if (table != null) {
+                for (int i = 0; i < table.length(); i++) {
+                    Node child = table.get(i);
+                    if (child != null) count += 1 + child.descendants();
+                }
+            }
+            return count;
+        }
+
+        private static void insert(AtomicReferenceArray<Node> table, Node node) {
+            int mask = table.length() - 1;
+            int i = spread(node.labelHash) & mask;
+            while (table.get(i) != null) i = (i + 1) & mask;
+            table.set(i, node);
+        }
+
+        private static int spread(int h) {
+            h *= 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -2,9 +2,14 @@ package ca.ubc.cs.cs317.dnslookup;
 
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class DNSCacheTest {
     @Test
@@ -33,4 +38,226 @@ public class DNSCacheTest {
         assertEquals(0, alist.size());
         cache.addResult(new ResourceRecord(DNSCache.AQuestion("ns.cs.ubc.ca"), 3600, DNSCache.stringToInetAddress("142.103.10.10")));
     }
+    @Test
+    public void testGetBestNameServerDeepest() {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        cache.addResult(new ResourceRecord(DNSCache.NSQuestion("ubc.ca"), 3600, "ns1.ubc.ca"));
+        cache.addResult(new ResourceRecord(DNSCache.NSQuestion("ubc.ca"), 3600, "ns2.ubc.ca"));
+        cache.addResult(new ResourceRecord(DNSCache.NSQuestion("cs.ubc.ca"), 3600, "dns.cs.ubc.ca"));
+        List<ResourceRecord> nslist = cache.getBestNameservers(DNSCache.AQuestion("a.b.cs.ubc.ca"));
+        assertEquals(1, nslist.size());
+        assertEquals("dns.cs.ubc.ca", nslist.get(0).getTextResult());
+        assertEquals(2, cache.getBestNameservers(DNSCache.AQuestion("math.ubc.ca")).size());
+        assertEquals(1, cache.getBestNameservers(DNSCache.NSQuestion("cs.ubc.ca")).size());
+        assertEquals(13, cache.getBestNameservers(DNSCache.AQuestion("ubc.com")).size());
+    }
+    @Test
+    public void testZoneCutTriePruning() {
+        ZoneCutTrie trie = new ZoneCutTrie();
+        DNSQuestion ubc = DNSCache.NSQuestion("ubc.ca");
+        DNSQuestion cs = DNSCache.NSQuestion("cs.ubc.ca");
+        trie.set(ubc, RRSet.EMPTY.withRecord(new ResourceRecord(ubc, 3600, "ns1.ubc.ca")));
+        trie.set(cs, RRSet.EMPTY.withRecord(new ResourceRecord(cs, 3600, "dns.cs.ubc.ca")));
+        assertEquals(3, trie.size());
+        // A zone with a cached subzone keeps its node
+        trie.set(ubc, null);
+        assertEquals(3, trie.size());
+        assertEquals(cs, trie.findDeepest("www.cs.ubc.ca").question);
+        // Removing the last zone removes the whole path to it
+        trie.set(cs, null);
+        assertEquals(0, trie.size());
+        assertNull(trie.findDeepest("www.cs.ubc.ca"));
+        trie.set(cs, null);
+        assertEquals(0, trie.size());
+    }
+    @Test
+    public void testConcurrentAddResult() throws InterruptedException {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        DNSQuestion question = DNSCache.AQuestion("www.cs.ubc.ca");
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int base = t * 32;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 32; i++) {
+                    cache.addResult(new ResourceRecord(question, 3600,
+                            DNSCache.stringToInetAddress("10.0." + (base + i) / 256 + "." + (base + i) % 256)));
+                    cache.getCachedResults(question);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertEquals(256, cache.getCachedResults(question).size());
+    }
+    @Test
+    public void testExpiredRecordsRemoved() throws InterruptedException {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        DNSQuestion question = DNSCache.AQuestion("short.cs.ubc.ca");
+        cache.addResult(new ResourceRecord(question, 1, DNSCache.stringToInetAddress("142.103.10.10")));
+        cache.addResult(new ResourceRecord(question, 3600, DNSCache.stringToInetAddress("142.103.10.11")));
+        assertEquals(2, cache.getCachedResults(question).size());
+        Thread.sleep(1100);
+        assertEquals(1, cache.getCachedResults(question).size());
+        List<DNSQuestion> dumped = new ArrayList<>();
+        cache.forEachRecord((q, record) -> dumped.add(q));
+        assertEquals(1, dumped.stream().filter(question::equals).count());
+    }
+    @Test
+    public void testBoundedCacheKeepsPopularNames() {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        cache.setCapacity(100, DNSCache.CapacityUnit.RECORDS);
+        try {
+            DNSQuestion popular = DNSCache.AQuestion("popular.cs.ubc.ca");
+            cache.addResult(new ResourceRecord(popular, 3600, DNSCache.stringToInetAddress("142.103.10.10")));
+            for (int i = 0; i < 1000; i++) {
+                cache.getCachedResults(popular);
+                cache.addResult(new ResourceRecord(DNSCache.AQuestion("host" + i + ".example.com"), 3600,
+                        DNSCache.stringToInetAddress("10.1." + i / 256 + "." + i % 256)));
+            }
+            assertTrue(cache.getWeight() <= 100);
+            assertTrue(cache.getEvictionCount() >= 900);
+            assertFalse(cache.getCachedResults(popular).isEmpty());
+            assertEquals(13, cache.getBestNameservers(DNSCache.NSQuestion("example.com")).size());
+        } finally {
+            cache.setCapacity(Long.MAX_VALUE, DNSCache.CapacityUnit.RECORDS);
+        }
+    }
+    @Test
+    public void testExpiryIndexOneDeadlinePerQuestion() {
+        ExpiryIndex index = new ExpiryIndex();
+        DNSQuestion question = DNSCache.AQuestion("ttl.cs.ubc.ca");
+        // Later deadlines for a question already scheduled are not added
+        for (int i = 0; i < 100; i++) index.schedule(question, 1000 + i);
+        assertEquals(1, index.size());
+        // Cancelled deadlines are dropped once they outnumber the live ones
+        for (int i = 0; i < 1000; i++) {
+            DNSQuestion evicted = DNSCache.AQuestion("host" + i + ".example.com");
+            index.schedule(evicted, 2000);
+            index.cancel(evicted);
+        }
+        assertTrue(index.size() <= 2 + 64);
+        List<DNSQuestion> due = new ArrayList<>();
+        index.schedule(question, 500);
+        index.expireDue(3000, due::add, true);
+        assertEquals(1, due.size());
+        assertEquals(0, index.size());
+    }
+    @Test
+    public void testPrefetchNearExpiry() throws InterruptedException {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        List<DNSQuestion> prefetched = new ArrayList<>();
+        cache.enablePrefetch(50, 2, prefetched::add);
+        try {
+            DNSQuestion question = DNSCache.AQuestion("popular.cs.ubc.ca");
+            cache.addResult(new ResourceRecord(question, 2, DNSCache.stringToInetAddress("142.103.10.10")));
+            cache.getCachedResults(question);
+            cache.getCachedResults(question);
+            assertTrue(prefetched.isEmpty());
+            Thread.sleep(1100);
+            assertEquals(1, cache.getCachedResults(question).size());
+            cache.getCachedResults(question);
+            assertEquals(1, prefetched.size());
+            long issued = cache.getPrefetchesIssued();
+            long inTime = cache.getPrefetchesInTime();
+            cache.addResult(new ResourceRecord(question, 3600, DNSCache.stringToInetAddress("142.103.10.10")));
+            cache.prefetchCompleted(question);
+            assertEquals(inTime + 1, cache.getPrefetchesInTime());
+            assertTrue(issued >= 1);
+        } finally {
+            cache.disablePrefetch();
+        }
+    }
+    @Test
+    public void testStaleResults() throws InterruptedException {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        cache.setStaleWindow(60);
+        try {
+            DNSQuestion question = DNSCache.AQuestion("stale.cs.ubc.ca");
+            cache.addResult(new ResourceRecord(question, 1, DNSCache.stringToInetAddress("142.103.10.10")));
+            assertTrue(cache.getStaleResults(question, 30).isEmpty());
+            Thread.sleep(1100);
+            assertTrue(cache.getCachedResults(question).isEmpty());
+            List<ResourceRecord> stale = cache.getStaleResults(question, 30);
+            assertEquals(1, stale.size());
+            assertEquals(30, stale.get(0).getRemainingTTL());
+        } finally {
+            cache.setStaleWindow(0);
+        }
+    }
+
+    @Test
+    public void testStatistics() {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        CacheStatistics statistics = cache.getStatistics();
+        long hits = statistics.getHitCount(), misses = statistics.getMissCount();
+        long cnameHits = statistics.getCNameHitCount(), negativeHits = statistics.getNegativeHitCount();
+
+        int entries = cache.getEntryCount();
+        long records = cache.getRecordCount();
+        DNSQuestion alias = DNSCache.AQuestion("alias.cs.ubc.ca");
+        DNSQuestion target = DNSCache.AQuestion("target.cs.ubc.ca");
+        cache.addResult(new ResourceRecord(new DNSQuestion("alias.cs.ubc.ca", RecordType.CNAME, RecordClass.IN),
+                3600, "target.cs.ubc.ca"));
+        cache.addResult(new ResourceRecord(target, 3600, DNSCache.stringToInetAddress("142.103.10.10")));
+        assertEquals(entries + 2, cache.getEntryCount());
+        assertEquals(records + 2, cache.getRecordCount());
+
+        assertEquals(2, cache.getCachedResults(alias).size());
+        assertEquals(1, cache.getCachedResults(target).size());
+        assertTrue(cache.getCachedResults(DNSCache.AQuestion("missing.cs.ubc.ca")).isEmpty());
+        assertNull(cache.getNegativeResult(DNSCache.AQuestion("missing.cs.ubc.ca")));
+
+        assertEquals(hits + 2, statistics.getHitCount());
+        assertEquals(misses + 1, statistics.getMissCount());
+        assertEquals(cnameHits + 1, statistics.getCNameHitCount());
+        assertEquals(negativeHits, statistics.getNegativeHitCount());
+    }
+
+    @Test
+    public void testCachedResultsRoundRobin() {
+        DNSCache cache = DNSCache.getInstance();
+        cache.reset();
+        DNSQuestion question = DNSCache.AQuestion("www.cs.ubc.ca");
+        for (int i = 0; i < 3; i++) {
+            cache.addResult(new ResourceRecord(question, 3600, DNSCache.stringToInetAddress("142.103.10." + i)));
+        }
+        List<ResourceRecord> first = cache.getCachedResults(question);
+        List<ResourceRecord> second = cache.getCachedResults(question);
+        assertEquals(3, first.size());
+        assertEquals(first.get(1), second.get(0));
+        assertEquals(first.get(0), second.get(2));
+        assertThrows(UnsupportedOperationException.class, () -> first.remove(0));
+    }
+
+    @Test
+    public void testManualClockExpiration() {
+        DNSCache cache = DNSCache.getInstance();
+        DNSClock.ManualClock clock = new DNSClock.ManualClock(DNSClock.now());
+        DNSClock.setClock(clock);
+        try {
+            cache.reset();
+            DNSQuestion question = DNSCache.AQuestion("ttl.cs.ubc.ca");
+            ResourceRecord record = new ResourceRecord(question, 10, DNSCache.stringToInetAddress("142.103.10.10"));
+            cache.addResult(record);
+            assertEquals(10, record.getRemainingTTL());
+            clock.advance(9500);
+            assertEquals(1, record.getRemainingTTL());
+            assertFalse(record.isExpired());
+            assertEquals(1, cache.getCachedResults(question).size());
+            clock.advance(500);
+            assertTrue(record.isExpired());
+            assertTrue(cache.getCachedResults(question).isEmpty());
+        } finally {
+            DNSClock.setClock(null);
+            cache.reset();
+        }
+    }
 }
@@ -4,10 +4,20 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 public class DNSLookupServiceTest {
 
@@ -26,10 +36,10 @@ public class DNSLookupServiceTest {
         DNSMessage message = service.buildQuery(question);
 
         DNSMessage checkable = turnaround(message);
-        checkQuery(question, checkable, message.getID());
+        checkQuery(question, checkable, message.getID(), 1232);
     }
 
-    private int checkQuery(DNSQuestion question, DNSMessage message, int transactionId) {
+    private int checkQuery(DNSQuestion question, DNSMessage message, int transactionId, int payloadSize) {
         // Reset message for checking
         int receivedTransactionId = message.getID();
 
@@ -49,9 +59,16 @@ public class DNSLookupServiceTest {
         Assertions.assertEquals(1, message.getQDCount(), "Incorrect number of queries");
         Assertions.assertEquals(0, message.getANCount(), "Incorrect number of answers");
         Assertions.assertEquals(0, message.getNSCount(), "Incorrect number of nameservers");
-        Assertions.assertEquals(0, message.getARCount(), "Incorrect number of additional records");
+        Assertions.assertEquals(payloadSize > 0 ? 1 : 0, message.getARCount(),
+                "Incorrect number of additional records");
 
         Assertions.assertEquals(question, message.getQuestion(), "Question not correctly encoded");
+        if (payloadSize > 0) {
+            ResourceRecord opt = message.getRR();
+            Assertions.assertEquals(RecordType.OPT, opt.getRecordType(), "Additional record is not an OPT record");
+            Assertions.assertEquals("", opt.getHostName(), "OPT record not owned by the root");
+            Assertions.assertEquals(payloadSize, message.getUDPPayloadSize(), "Incorrect UDP payload size");
+        }
 
         return receivedTransactionId;
     }
@@ -116,7 +133,260 @@ public class DNSLookupServiceTest {
     }
 
     @Test
-    public void testProcessResponseSingleAnswer() throws UnknownHostException, DNSLookupService.DNSErrorException {
+    public void testBuildQueryEDNSPayloadSize() {
+        DNSQuestion question = new DNSQuestion("ubc.ca", RecordType.MX, RecordClass.IN);
+        service.setEDNSPayloadSize(4096);
+        DNSMessage message = service.buildQuery(question);
+        checkQuery(question, turnaround(message), message.getID(), 4096);
+
+        service.setEDNSPayloadSize(0);
+        message = service.buildQuery(question);
+        checkQuery(question, turnaround(message), message.getID(), 0);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> service.setEDNSPayloadSize(100));
+    }
+
+    @Test
+    public void testBuildQueryFromTemplate() {
+        DNSQuestion question = new DNSQuestion("www.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        byte[] first = service.buildQuery(question).getUsed();
+        byte[] second = service.buildQuery(question).getUsed();
+        // Only the transaction ID differs
+        Assertions.assertEquals(first.length, second.length);
+        Assertions.assertArrayEquals(Arrays.copyOfRange(first, 2, first.length),
+                Arrays.copyOfRange(second, 2, second.length));
+        checkQuery(question, new DNSMessage(second, second.length), (second[0] & 0xff) << 8 | (second[1] & 0xff), 1232);
+
+        // Templates encoded with the previous payload size are not used once it changes
+        service.setEDNSPayloadSize(4096);
+        byte[] larger = service.buildQuery(question).getUsed();
+        checkQuery(question, new DNSMessage(larger, larger.length), (larger[0] & 0xff) << 8 | (larger[1] & 0xff), 4096);
+        service.setEDNSPayloadSize(1232);
+
+        int[] encoded = {0};
+        Function<DNSQuestion, byte[]> encoder = q -> {
+            encoded[0]++;
+            return first;
+        };
+        QueryTemplateCache templates = new QueryTemplateCache(2, encoder);
+        Assertions.assertSame(first, templates.get(question));
+        Assertions.assertSame(first, templates.get(question));
+        Assertions.assertEquals(1, encoded[0]);
+        templates.get(new DNSQuestion("ubc.ca", RecordType.A, RecordClass.IN));
+        templates.get(new DNSQuestion("cs.ubc.ca", RecordType.A, RecordClass.IN));
+        Assertions.assertTrue(templates.size() <= 2, "Template cache exceeds its capacity");
+    }
+
+    @Test
+    public void testProcessResponseIgnoresOPT() throws DNSLookupService.DNSErrorException {
+        DNSQuestion question = new DNSQuestion("edns.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        ResourceRecord answer = new ResourceRecord(question, 3600, DNSCache.stringToInetAddress("35.24.11.130"));
+        DNSMessage response = buildResponse(random.nextInt(0x10000), true, 0, Collections.singleton(question),
+                Collections.singleton(answer), Collections.emptySet(), Collections.emptySet());
+        response.addOPT(1232);
+        DNSMessage received = turnaround(response);
+        Assertions.assertEquals(Collections.singleton(answer), service.processResponse(received));
+        Assertions.assertEquals(1232, received.getUDPPayloadSize());
+        Assertions.assertEquals(0, received.getExtendedRcode());
+        Assertions.assertTrue(cache.getCachedResults(new DNSQuestion("", RecordType.OPT, RecordClass.OTHER)).isEmpty());
+    }
+
+    @Test
+    public void testProcessResponseExtendedRcode() {
+        DNSQuestion question = new DNSQuestion("badvers.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        ResourceRecord answer = new ResourceRecord(question, 3600, DNSCache.stringToInetAddress("35.24.11.131"));
+        DNSMessage response = buildResponse(random.nextInt(0x10000), true, 0, Collections.singleton(question),
+                Collections.singleton(answer), Collections.emptySet(), Collections.emptySet());
+        response.addOPT(1232);
+        // BADVERS (16) has no bits in the header RCODE: its upper bits are the first byte of the OPT record's TTL
+        byte[] data = response.getUsed();
+        data[data.length - 6] = 1;
+        DNSMessage received = new DNSMessage(data, data.length);
+        Assertions.assertEquals(DNSMessage.NOERROR, received.getRcode());
+        // The OPT record is decoded along with the other records, and nothing is cached
+        Assertions.assertThrows(DNSLookupService.DNSErrorException.class, () -> service.processResponse(received));
+        Assertions.assertEquals(DNSMessage.BADVERS, received.getExtendedRcode());
+        Assertions.assertTrue(cache.getCachedResults(question).isEmpty());
+
+        // A server that rejects the EDNS version only sends its OPT record, which can be found without reading records
+        DNSMessage rejection = buildResponse(random.nextInt(0x10000), false, 0, Collections.singleton(question),
+                Collections.emptySet(), Collections.emptySet(), Collections.emptySet());
+        rejection.addOPT(1232);
+        data = rejection.getUsed();
+        data[data.length - 6] = 1;
+        DNSMessage badvers = new DNSMessage(data, data.length);
+        Assertions.assertTrue(badvers.findOPT());
+        Assertions.assertEquals(DNSMessage.BADVERS, badvers.getExtendedRcode());
+        // The position was not moved
+        Assertions.assertEquals(question, badvers.getQuestion());
+    }
+
+    @Test
+    public void testMessageReaderNamesInPlace() throws UnknownHostException {
+        DNSQuestion question = new DNSQuestion("cs.ubc.ca", RecordType.NS, RecordClass.IN);
+        ResourceRecord ns1 = new ResourceRecord(question, 3600, "ns1.cs.ubc.ca");
+        ResourceRecord ns2 = new ResourceRecord(question, 3600, "ns2.ubc.ca");
+        ResourceRecord glue = new ResourceRecord(new DNSQuestion("ns1.cs.ubc.ca", RecordType.A, RecordClass.IN),
+                600, InetAddress.getByName("142.103.6.6"));
+        byte[] response = buildResponse(1234, false, 0, Collections.singleton(question),
+                Collections.emptySet(), Arrays.asList(ns1, ns2), Collections.singleton(glue)).getUsed();
+
+        DNSMessageReader reader = new DNSMessageReader(response, response.length);
+        Assertions.assertEquals(1234, reader.getID());
+        Assertions.assertEquals(2, reader.getNSCount());
+        reader.nextQuestion();
+        Assertions.assertTrue(reader.isQuestion(question));
+        Assertions.assertFalse(reader.isQuestion(new DNSQuestion("cs.ubc.ca", RecordType.A, RecordClass.IN)));
+        Assertions.assertFalse(reader.getName().matches("ubc.ca"));
+        Assertions.assertFalse(reader.getName().matches("cs.ubc.ca.ca"));
+        Assertions.assertEquals(11, reader.getName().getLength());
+
+        reader.nextRecord();
+        // The owner is a pointer to the question
+        Assertions.assertEquals(2, reader.getName().getLength());
+        Assertions.assertTrue(reader.getName().matches("cs.ubc.ca"));
+        Assertions.assertTrue(reader.getTarget().matches("ns1.cs.ubc.ca"));
+        Assertions.assertEquals(ns1, reader.getRecord());
+        DNSQuestion owner = reader.getQuestion();
+        reader.nextRecord();
+        Assertions.assertEquals(ns2, reader.getRecord());
+        Assertions.assertSame(owner, reader.getQuestion(), "Records of an RRset should share their question");
+        reader.nextRecord();
+        Assertions.assertEquals(RecordType.A, reader.getRecordType());
+        Assertions.assertEquals(4, reader.getRdataLength());
+        Assertions.assertEquals(glue, reader.getRecord());
+        Assertions.assertEquals(response.length, reader.getPosition());
+
+        // Names in different messages are compared on the wire
+        DNSMessage query = turnaround(service.buildQuery(new DNSQuestion("ns1.cs.ubc.ca", RecordType.A, RecordClass.IN)));
+        DNSMessageReader other = query.reader();
+        other.nextQuestion();
+        Assertions.assertTrue(reader.getName().matches(other.getName()));
+        Assertions.assertEquals("ns1.cs.ubc.ca", other.getName().toString());
+
+        // A pointer to the name itself is rejected instead of looping
+        byte[] loop = response.clone();
+        loop[DNSMessage.DataOffset] = (byte) 0xc0;
+        loop[DNSMessage.DataOffset + 1] = (byte) DNSMessage.DataOffset;
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new DNSMessage(loop, loop.length).getQuestion());
+        // A label followed by a pointer back to that label points backwards, but still loops
+        byte[] labelLoop = response.clone();
+        labelLoop[DNSMessage.DataOffset] = 1;
+        labelLoop[DNSMessage.DataOffset + 1] = 'x';
+        labelLoop[DNSMessage.DataOffset + 2] = (byte) 0xc0;
+        labelLoop[DNSMessage.DataOffset + 3] = (byte) DNSMessage.DataOffset;
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> new DNSMessage(labelLoop, labelLoop.length).getQuestion());
+        DNSMessageReader loopReader = new DNSMessageReader(labelLoop, labelLoop.length);
+        Assertions.assertThrows(IllegalArgumentException.class, loopReader::nextQuestion);
+    }
+
+    @Test
+    public void testAddNameCompression() {
+        DNSMessage message = new DNSMessage((short) 1);
+        message.addName("www.cs.ubc.ca");
+        Assertions.assertEquals(DNSMessage.DataOffset + 15, message.getUsed().length);
+        // Only the first label is written, followed by a pointer to "cs.ubc.ca"
+        message.addName("mail.cs.ubc.ca");
+        Assertions.assertEquals(DNSMessage.DataOffset + 22, message.getUsed().length);
+        message.addName("ubc.ca");
+        Assertions.assertEquals(DNSMessage.DataOffset + 24, message.getUsed().length);
+        message.addName("ubc.ca.org");
+        Assertions.assertEquals(DNSMessage.DataOffset + 36, message.getUsed().length);
+        message.addName("");
+        message.addName("mail.cs.ubc.ca");
+        Assertions.assertEquals(DNSMessage.DataOffset + 39, message.getUsed().length);
+
+        byte[] data = message.getUsed();
+        DNSMessage received = new DNSMessage(data, data.length);
+        for (String name : new String[]{"www.cs.ubc.ca", "mail.cs.ubc.ca", "ubc.ca", "ubc.ca.org", "", "mail.cs.ubc.ca"}) {
+            Assertions.assertEquals(name, received.getName());
+        }
+        Assertions.assertThrows(IllegalArgumentException.class, () -> message.addName(String.join("", Collections.nCopies(64, "a"))));
+    }
+
+    @Test
+    public void testMessageAndBufferReuse() {
+        BufferPool pool = new BufferPool(2, DNSMessage.MAX_DNS_MESSAGE_LENGTH, true);
+        ByteBuffer buffer = pool.acquire();
+        Assertions.assertTrue(buffer.isDirect());
+
+        DNSQuestion question = new DNSQuestion("www.cs.ubc.ca", RecordType.AAAA, RecordClass.IN);
+        DNSMessage message = new DNSMessage((short) 1);
+        message.addQuestion(new DNSQuestion("mail.cs.ubc.ca", RecordType.MX, RecordClass.IN));
+        message.addOPT(1232);
+        message.reset((short) 2);
+        message.addQuestion(question);
+        Assertions.assertEquals(DNSMessage.DataOffset + 19, message.getLength());
+
+        message.writeTo(buffer);
+        buffer.flip();
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        DNSMessage received = new DNSMessage(data, data.length);
+        Assertions.assertEquals(2, received.getID());
+        Assertions.assertEquals(1, received.getQDCount());
+        Assertions.assertEquals(0, received.getARCount());
+        Assertions.assertEquals(question, received.getQuestion());
+
+        pool.release(buffer);
+        Assertions.assertEquals(1, pool.available());
+        Assertions.assertSame(buffer, pool.acquire());
+        Assertions.assertEquals(0, buffer.position());
+        Assertions.assertEquals(0, pool.available());
+        // Buffers that don't belong to the pool are not kept
+        pool.release(ByteBuffer.allocate(DNSMessage.MAX_DNS_MESSAGE_LENGTH));
+        Assertions.assertEquals(0, pool.available());
+
+        // A query message returned to its pool is reused for the next query, with its content replaced
+        MessagePool messages = new MessagePool(1);
+        messages.release(message);
+        Assertions.assertEquals(1, messages.available());
+        DNSMessage reused = messages.acquire();
+        Assertions.assertSame(message, reused);
+        byte[] template = service.buildQuery(question).getUsed();
+        reused.load(template, template.length);
+        Assertions.assertArrayEquals(template, reused.getUsed());
+        Assertions.assertEquals(0, messages.available());
+    }
+
+    @Test
+    public void testProcessResponseSelectiveDecoding() throws UnknownHostException, DNSLookupService.DNSErrorException {
+        cache.reset();
+        service.setSelectiveDecoding(true);
+        DNSQuestion question = new DNSQuestion("www.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        DNSQuestion zone = new DNSQuestion("cs.ubc.ca", RecordType.NS, RecordClass.IN);
+        ResourceRecord ns1 = new ResourceRecord(zone, 3600, "ns1.cs.ubc.ca");
+        ResourceRecord ns2 = new ResourceRecord(zone, 3600, "ns2.cs.ubc.ca");
+        ResourceRecord glue1 = new ResourceRecord(new DNSQuestion("ns1.cs.ubc.ca", RecordType.A, RecordClass.IN),
+                3600, InetAddress.getByName("142.103.6.6"));
+        ResourceRecord glue2 = new ResourceRecord(new DNSQuestion("ns2.cs.ubc.ca", RecordType.AAAA, RecordClass.IN),
+                3600, InetAddress.getByName("2607:f8f0:610::6"));
+        ResourceRecord unrelated = new ResourceRecord(new DNSQuestion("mail.cs.ubc.ca", RecordType.A, RecordClass.IN),
+                3600, InetAddress.getByName("142.103.6.25"));
+
+        // A referral: only the addresses of the nameservers are decoded from the additional section
+        DNSMessage referral = buildResponse(1, false, 0, Collections.singleton(question), Collections.emptySet(),
+                Arrays.asList(ns1, ns2), Arrays.asList(glue1, unrelated, glue2));
+        Assertions.assertEquals(new HashSet<>(Arrays.asList(ns1, ns2, glue1, glue2)),
+                service.processResponse(turnaround(referral)));
+        Assertions.assertTrue(cache.getCachedResults(unrelated.getQuestion()).isEmpty());
+
+        // An answer: the authority and additional sections are skipped
+        cache.reset();
+        ResourceRecord answer = new ResourceRecord(question, 3600, InetAddress.getByName("142.103.6.80"));
+        DNSMessage answers = buildResponse(2, true, 0, Collections.singleton(question), Collections.singleton(answer),
+                Arrays.asList(ns1, ns2), Arrays.asList(glue1, glue2));
+        Assertions.assertEquals(Collections.singleton(answer), service.processResponse(turnaround(answers)));
+        Assertions.assertTrue(cache.getCachedResults(zone).isEmpty());
+
+        // Without selective decoding, every record is decoded
+        service.setSelectiveDecoding(false);
+        Assertions.assertEquals(new HashSet<>(Arrays.asList(answer, ns1, ns2, glue1, glue2)),
+                service.processResponse(turnaround(answers)));
+    }
+
+    @Test
+    public void testProcessResponseSingleAnswer()throws UnknownHostException, DNSLookupService.DNSErrorException {
         DNSQuestion question = new DNSQuestion("www.cs.ubc.ca", RecordType.A, RecordClass.IN);
         processResponseCommonTest(true, 0,
                 Collections.singleton(question),
@@ -127,4 +397,160 @@ public class DNSLookupServiceTest {
                 Collections.singleton(new ResourceRecord(question, 16482, InetAddress.getByName("103.233.44.22"))),
                 Collections.emptySet(), Collections.emptySet());
     }
+
+    @Test
+    public void testProcessResponseNegativeAnswers() throws DNSLookupService.DNSErrorException {
+        cache.reset();
+        // SOA data: root MNAME and RNAME, then serial, refresh, retry, expire and a MINIMUM of 300 seconds
+        ResourceRecord soa = new ResourceRecord(new DNSQuestion("cs.ubc.ca", RecordType.SOA, RecordClass.IN), 3600,
+                "0000" + "00000001" + "00001c20" + "00000e10" + "00093a80" + "0000012c");
+
+        DNSQuestion missing = new DNSQuestion("missing.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        DNSMessage nxdomain = buildResponse(random.nextInt(0x10000), true, DNSMessage.NXDOMAIN,
+                Collections.singleton(missing), Collections.emptySet(), Collections.singleton(soa),
+                Collections.emptySet());
+        Assertions.assertThrows(DNSLookupService.DNSErrorException.class,
+                () -> service.processResponse(turnaround(nxdomain)));
+        Assertions.assertEquals(DNSCache.NegativeResult.NXDOMAIN, cache.getNegativeResult(missing));
+        // Answered from the cache, without sending any query
+        Assertions.assertThrows(DNSLookupService.DNSErrorException.class, () -> service.iterativeQuery(missing));
+
+        DNSQuestion noData = new DNSQuestion("www.cs.ubc.ca", RecordType.AAAA, RecordClass.IN);
+        DNSMessage nodata = buildResponse(random.nextInt(0x10000), true, DNSMessage.NOERROR,
+                Collections.singleton(noData), Collections.emptySet(), Collections.singleton(soa),
+                Collections.emptySet());
+        service.processResponse(turnaround(nodata));
+        Assertions.assertEquals(DNSCache.NegativeResult.NODATA, cache.getNegativeResult(noData));
+        Assertions.assertTrue(cache.getCachedResults(noData).isEmpty());
+        Assertions.assertTrue(service.iterativeQuery(noData).isEmpty());
+    }
+
+    @Test
+    public void testTransportDropsUnmatchedResponses() throws Exception {
+        DNSQuestion question = new DNSQuestion("www.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        DNSQuestion other = new DNSQuestion("www.ubc.ca", RecordType.A, RecordClass.IN);
+        int[] attempts = new int[1];
+        try (DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             QueryTransport transport = new QueryTransport(512)) {
+            DNSMessage query = service.buildQuery(question);
+            CompletableFuture<DNSMessage> future = transport.send(query, question, server.getLocalAddress(),
+                    server.getLocalPort(), 3, attempt -> attempts[0] = attempt);
+
+            DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+            server.receive(packet);
+            // A response with another ID, and one for another question, must both be ignored
+            for (DNSMessage stray : new DNSMessage[] { response(query.getID() ^ 1, question),
+                    response(query.getID(), other), response(query.getID(), question) }) {
+                byte[] data = stray.getUsed();
+                server.send(new DatagramPacket(data, data.length, packet.getSocketAddress()));
+            }
+
+            DNSMessage received = future.get(2, TimeUnit.SECONDS);
+            Assertions.assertEquals(query.getID(), received.getID());
+            Assertions.assertEquals(question, received.getQuestion());
+            Assertions.assertEquals(1, attempts[0]);
+        }
+    }
+
+    @Test
+    public void testTcpConnectionReusedAndPipelined() throws Exception {
+        DNSQuestion first = new DNSQuestion("www.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        DNSQuestion second = new DNSQuestion("www.ubc.ca", RecordType.A, RecordClass.IN);
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             TcpConnectionPool pool = new TcpConnectionPool(5000)) {
+            server.setSoTimeout(2000);
+            DNSMessage firstQuery = service.buildQuery(first);
+            DNSMessage secondQuery = service.buildQuery(second);
+            CompletableFuture<DNSMessage> firstResponse = pool.send(firstQuery, first, server.getInetAddress(),
+                    server.getLocalPort());
+            CompletableFuture<DNSMessage> secondResponse = pool.send(secondQuery, second, server.getInetAddress(),
+                    server.getLocalPort());
+
+            try (Socket connection = server.accept()) {
+                DataInputStream input = new DataInputStream(connection.getInputStream());
+                DataOutputStream output = new DataOutputStream(connection.getOutputStream());
+                List<DNSMessage> queries = new ArrayList<>();
+                for (int i = 0; i < 2; i++) {
+                    byte[] data = new byte[input.readUnsignedShort()];
+                    input.readFully(data);
+                    queries.add(new DNSMessage(data, data.length));
+                }
+                // Both queries are waiting on the same connection, and are answered in reverse order
+                Collections.reverse(queries);
+                for (DNSMessage query : queries) {
+                    byte[] data = response(query.getID(), query.getQuestion()).getUsed();
+                    output.writeShort(data.length);
+                    output.write(data);
+                }
+                output.flush();
+
+                Assertions.assertEquals(second, secondResponse.get(2, TimeUnit.SECONDS).getQuestion());
+                Assertions.assertEquals(first, firstResponse.get(2, TimeUnit.SECONDS).getQuestion());
+                Assertions.assertEquals(1, pool.getConnectionCount());
+
+                // A later query reuses the connection
+                DNSMessage thirdQuery = service.buildQuery(first);
+                CompletableFuture<DNSMessage> thirdResponse = pool.send(thirdQuery, first, server.getInetAddress(),
+                        server.getLocalPort());
+                byte[] data = new byte[input.readUnsignedShort()];
+                input.readFully(data);
+                Assertions.assertEquals(thirdQuery.getID(), new DNSMessage(data, data.length).getID());
+                data = response(thirdQuery.getID(), first).getUsed();
+                output.writeShort(data.length);
+                output.write(data);
+                output.flush();
+                Assertions.assertEquals(thirdQuery.getID(), thirdResponse.get(2, TimeUnit.SECONDS).getID());
+            }
+        }
+    }
+
+    private static DNSMessage response(int id, DNSQuestion question) {
+        DNSMessage message = new DNSMessage((short) id);
+        message.setQR(true);
+        message.addQuestion(question);
+        return message;
+    }
+
+    @Test
+    public void testServerSelectorPrefersFastest() {
+        ServerSelector selector = new ServerSelector();
+        DNSQuestion question = DNSCache.AQuestion("ns.cs.ubc.ca");
+        ResourceRecord fast = new ResourceRecord(question, 3600, DNSCache.stringToInetAddress("10.0.0.1"));
+        ResourceRecord slow = new ResourceRecord(question, 3600, DNSCache.stringToInetAddress("10.0.0.2"));
+        selector.recordResponse(fast.getInetResult(), 5);
+        selector.recordResponse(slow.getInetResult(), 200);
+        List<ResourceRecord> candidates = Arrays.asList(slow, fast);
+
+        int fastChosen = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (selector.choose(candidates, Collections.emptySet()) == fast) fastChosen++;
+        }
+        Assertions.assertTrue(fastChosen > 900 && fastChosen < 1000, "Fast server chosen " + fastChosen + " times");
+        Assertions.assertEquals(slow, selector.choose(candidates, Collections.singleton(fast.getInetResult())));
+        Assertions.assertNull(selector.choose(candidates,
+                Arrays.asList(fast.getInetResult(), slow.getInetResult())));
+
+        selector.recordTimeout(fast.getInetResult(), 5000);
+        Assertions.assertEquals(10000, selector.getEstimate(fast.getInetResult()).getSmoothedRtt());
+        Assertions.assertEquals(1, selector.getEstimate(fast.getInetResult()).getTimeoutCount());
+    }
+
+    @Test
+    public void testRetransmissionTimeout() {
+        ServerSelector selector = new ServerSelector();
+        InetAddress fast = DNSCache.stringToInetAddress("10.0.0.1");
+        InetAddress slow = DNSCache.stringToInetAddress("10.0.0.2");
+        InetAddress unknown = DNSCache.stringToInetAddress("10.0.0.3");
+        selector.recordResponse(fast, 5);
+        selector.recordResponse(slow, 200);
+
+        Assertions.assertEquals(1000, selector.getRetransmissionTimeout(unknown, 1));
+        Assertions.assertEquals(2000, selector.getRetransmissionTimeout(unknown, 2));
+        Assertions.assertEquals(100, selector.getRetransmissionTimeout(fast, 1));
+        Assertions.assertEquals(200, selector.getRetransmissionTimeout(fast, 2));
+        Assertions.assertEquals(600, selector.getRetransmissionTimeout(slow, 1));
+        Assertions.assertEquals(2400, selector.getRetransmissionTimeout(slow, 3));
+        Assertions.assertEquals(5000, selector.getRetransmissionTimeout(slow, 5));
+        Assertions.assertEquals(5000, selector.getRetransmissionTimeout(slow, 100));
+    }
 }
@@ -8,6 +8,7 @@ import java.util.concurrent.atomic.AtomicReference;
 import static ca.ubc.cs.cs317.dnslookup.DNSLookupService.DEFAULT_DNS_PORT;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class LocalNameServer {
     private final InetAddress address;
@@ -49,9 +50,12 @@ public class LocalNameServer {
                 XDNSMessage request = receiveMessage(socket, address);
                 int requestID = request.getID();
                 int qd = request.getQDCount();
-                int nrrs = request.getANCount() + request.getNSCount() + request.getARCount();
+                int nrrs = request.getANCount() + request.getNSCount();
                 assertEquals(1, qd, "Expected one question, but found " + qd);
                 assertEquals(0, nrrs, "Expected no resource records, but found " + nrrs);
+                // Only the EDNS(0) OPT record may be in the additional section
+                assertTrue(request.getARCount() <= 1, "Expected at most an OPT record, but found "
+                        + request.getARCount() + " additional records");
                 DNSQuestion question = request.getQuestion();
                 ExpectedQuery query = lookup(question);
                 assertNotNull(query, "Received a question that has no answer");
@@ -6,12 +6,20 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
 public class cwl_exampleDNSTest {
 
     private static final Duration SHORT_TIMEOUT = Duration.ofMillis(2000);
@@ -69,6 +77,242 @@ public class cwl_exampleDNSTest {
         server.shutdown();
     }
 
+    @Test
+    @DisplayName("resolveAsync: single answer in first response")
+    public void testResolveAsyncOneAnswer() throws Exception {
+        DNSQuestion question = new DNSQuestion("async.host.name.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        ResourceRecord response = new ResourceRecord(question, TTL, InetAddress.getByName("123.45.67.90"));
+        ExpectedQuery query = new ExpectedQuery(question, Collections.singletonList(response));
+        LocalNameServer server = new LocalNameServer(DNSCache.stringToInetAddress(testRootServer[1]), query);
+        this.cache.reset(testRootServer);
+
+        Collection<ResourceRecord> answer = Assertions.assertTimeoutPreemptively(SHORT_TIMEOUT,
+                () -> this.service.resolveAsync(question).get());
+        Assertions.assertEquals(1, answer.size(), "Incorrect number of answers");
+        Assertions.assertEquals(response, answer.iterator().next());
+
+        server.shutdown();
+        service.close();
+    }
+
+    @Test
+    @DisplayName("resolveOnVirtualThread: concurrent lookups on their own threads")
+    public void testResolveOnVirtualThread() throws Exception {
+        ExpectedQuery[] queries = new ExpectedQuery[4];
+        for (int i = 0; i < queries.length; i++) {
+            DNSQuestion question = new DNSQuestion("host" + i + ".cs.ubc.ca", RecordType.A, RecordClass.IN);
+            queries[i] = new ExpectedQuery(question, Collections.singletonList(
+                    new ResourceRecord(question, TTL, InetAddress.getByName("123.45.67." + i))));
+        }
+        LocalNameServer server = new LocalNameServer(DNSCache.stringToInetAddress(testRootServer[1]), queries);
+        this.cache.reset(testRootServer);
+
+        List<CompletableFuture<Collection<ResourceRecord>>> futures = new ArrayList<>();
+        for (ExpectedQuery query : queries) {
+            futures.add(this.service.resolveOnVirtualThread(query.question, 10));
+        }
+        for (int i = 0; i < queries.length; i++) {
+            CompletableFuture<Collection<ResourceRecord>> future = futures.get(i);
+            Collection<ResourceRecord> answer = Assertions.assertTimeoutPreemptively(SHORT_TIMEOUT, () -> future.get());
+            Assertions.assertEquals(queries[i].answers, new ArrayList<>(answer));
+        }
+
+        server.shutdown();
+        service.close();
+    }
+
+    @Test
+    @DisplayName("iterativeQuery: concurrent identical questions share one resolution")
+    public void testIterativeQueryCoalesced() throws Exception {
+        DNSQuestion question = new DNSQuestion("api.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        ResourceRecord response = new ResourceRecord(question, TTL, InetAddress.getByName("123.45.67.91"));
+        LocalNameServer server = new LocalNameServer(DNSCache.stringToInetAddress(testRootServer[1]),
+                new ExpectedQuery(question, Collections.singletonList(response)));
+        this.cache.reset(testRootServer);
+
+        long sent = service.getQueriesSent(RecordType.A);
+        List<CompletableFuture<Collection<ResourceRecord>>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(service.resolveOnVirtualThread(question, 10));
+        }
+        for (CompletableFuture<Collection<ResourceRecord>> future : futures) {
+            Collection<ResourceRecord> answer = Assertions.assertTimeoutPreemptively(SHORT_TIMEOUT, () -> future.get());
+            Assertions.assertEquals(Collections.singletonList(response), new ArrayList<>(answer));
+        }
+        Assertions.assertEquals(sent + 1, service.getQueriesSent(RecordType.A));
+
+        server.shutdown();
+        service.close();
+    }
+
+    @Test
+    @DisplayName("iterativeQuery: hedged query to another nameserver when the fastest one is silent")
+    public void testIterativeQueryHedged() throws Exception {
+        DNSQuestion question = new DNSQuestion("hedged.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        ResourceRecord response = new ResourceRecord(question, TTL, InetAddress.getByName("123.45.67.92"));
+        LocalNameServer server = new LocalNameServer(DNSCache.stringToInetAddress(testRootServer[1]),
+                new ExpectedQuery(question, Collections.singletonList(response)));
+        // Nothing listens on the second root server, but it is measured as the fastest one
+        String[] silentRootServer = {"silentRootServer", "127.0.0.2"};
+        this.cache.reset(testRootServer, silentRootServer);
+        service.getServerSelector().recordResponse(DNSCache.stringToInetAddress(silentRootServer[1]), 1);
+        service.getServerSelector().recordResponse(DNSCache.stringToInetAddress(testRootServer[1]), 50);
+        service.setHedging(1);
+
+        // Without hedging, the silent server would be retried until its attempts run out
+        Collection<ResourceRecord> answer = Assertions.assertTimeoutPreemptively(Duration.ofMillis(500),
+                () -> this.service.iterativeQuery(question));
+        Assertions.assertEquals(Collections.singletonList(response), new ArrayList<>(answer));
+        Assertions.assertTrue(service.getHedgedQueryCount() <= 1);
+
+        server.shutdown();
+        service.close();
+    }
+
+    @Test
+    @DisplayName("iterativeQuery: glue-less nameserver addresses are resolved in parallel")
+    public void testIterativeQueryParallelNameserverLookups() throws Exception {
+        DNSQuestion question = new DNSQuestion("www.example.org", RecordType.A, RecordClass.IN);
+        ResourceRecord response = new ResourceRecord(question, TTL, InetAddress.getByName("123.45.67.93"));
+        DNSQuestion zone = new DNSQuestion("example.org", RecordType.NS, RecordClass.IN);
+        DNSQuestion slowNS = new DNSQuestion("ns1.slow.test", RecordType.A, RecordClass.IN);
+        DNSQuestion fastNS = new DNSQuestion("ns2.fast.test", RecordType.A, RecordClass.IN);
+        DNSQuestion slowZone = new DNSQuestion("slow.test", RecordType.NS, RecordClass.IN);
+        DNSQuestion silentNS = new DNSQuestion("silent.slow.test", RecordType.A, RecordClass.IN);
+        // The root delegates example.org to two nameservers without glue. The address of the first one can only be
+        // found through a server that never answers; the second one is answered right away.
+        LocalNameServer root = new LocalNameServer(DNSCache.stringToInetAddress(testRootServer[1]),
+                new ExpectedQuery(question, Collections.emptyList(), Arrays.asList(
+                        new ResourceRecord(zone, TTL, slowNS.getHostName()),
+                        new ResourceRecord(zone, TTL, fastNS.getHostName()))),
+                new ExpectedQuery(slowNS, Collections.emptyList(),
+                        Collections.singletonList(new ResourceRecord(slowZone, TTL, silentNS.getHostName())),
+                        Collections.singletonList(new ResourceRecord(silentNS, TTL,
+                                InetAddress.getByName("127.0.0.2")))),
+                new ExpectedQuery(fastNS, Collections.singletonList(
+                        new ResourceRecord(fastNS, TTL, InetAddress.getByName("127.0.0.3")))));
+        LocalNameServer zoneServer = new LocalNameServer(InetAddress.getByName("127.0.0.3"),
+                new ExpectedQuery(question, Collections.singletonList(response)));
+        this.cache.reset(testRootServer);
+
+        Collection<ResourceRecord> answer = Assertions.assertTimeoutPreemptively(Duration.ofMillis(1000),
+                () -> this.service.iterativeQuery(question));
+        Assertions.assertEquals(Collections.singletonList(response), new ArrayList<>(answer));
+
+        service.close();
+        zoneServer.shutdown();
+        root.shutdown();
+    }
+
+    @Test
+    @DisplayName("iterativeQuery: concurrent lookups share the resolution of a glue-less nameserver")
+    public void testIterativeQueryCoalescedNameserverLookups() throws Exception {
+        DNSQuestion first = new DNSQuestion("first.example.net", RecordType.A, RecordClass.IN);
+        DNSQuestion second = new DNSQuestion("second.example.net", RecordType.A, RecordClass.IN);
+        ResourceRecord firstResponse = new ResourceRecord(first, TTL, InetAddress.getByName("123.45.67.95"));
+        ResourceRecord secondResponse = new ResourceRecord(second, TTL, InetAddress.getByName("123.45.67.96"));
+        DNSQuestion zone = new DNSQuestion("example.net", RecordType.NS, RecordClass.IN);
+        DNSQuestion sharedNS = new DNSQuestion("ns.shared.test", RecordType.A, RecordClass.IN);
+        InetAddress address = InetAddress.getByName("127.0.0.5");
+        List<DNSQuestion> received = Collections.synchronizedList(new ArrayList<>());
+        // A root server that delegates example.net to a nameserver without glue, and answers the address of that
+        // nameserver after a while, so that both lookups need it at the same time
+        DatagramSocket socket = new DatagramSocket(DNSLookupService.DEFAULT_DNS_PORT, address);
+        Thread server = new Thread(() -> {
+            try {
+                while (true) {
+                    AtomicReference<SocketAddress> sender = new AtomicReference<>();
+                    XDNSMessage request = LocalNameServer.receiveMessage(socket, sender);
+                    DNSQuestion question = request.getQuestion();
+                    received.add(question);
+                    XDNSMessage reply = new XDNSMessage((short) request.getID());
+                    reply.setQR(true);
+                    reply.addQuestion(question);
+                    if (question.equals(sharedNS)) {
+                        reply.setAA(true);
+                        reply.addResourceRecord(new ResourceRecord(sharedNS, TTL,
+                                InetAddress.getByName("127.0.0.6")), "answer");
+                        new Thread(() -> {
+                            try {
+                                Thread.sleep(50);
+                                LocalNameServer.sendMessage(reply, socket, sender.get());
+                            } catch (InterruptedException | IOException e) {
+                                // Socket closed
+                            }
+                        }).start();
+                    } else {
+                        reply.addResourceRecord(new ResourceRecord(zone, TTL, sharedNS.getHostName()), "nameserver");
+                        LocalNameServer.sendMessage(reply, socket, sender.get());
+                    }
+                }
+            } catch (IOException e) {
+                // Socket closed
+            }
+        });
+        server.start();
+        LocalNameServer zoneServer = new LocalNameServer(InetAddress.getByName("127.0.0.6"),
+                new ExpectedQuery(first, Collections.singletonList(firstResponse)),
+                new ExpectedQuery(second, Collections.singletonList(secondResponse)));
+        this.cache.reset(new String[] {"sharedRootServer", address.getHostAddress()});
+
+        CompletableFuture<Collection<ResourceRecord>> firstAnswer = service.resolveOnVirtualThread(first, 10);
+        CompletableFuture<Collection<ResourceRecord>> secondAnswer = service.resolveOnVirtualThread(second, 10);
+        Assertions.assertEquals(Collections.singletonList(firstResponse),
+                new ArrayList<>(Assertions.assertTimeoutPreemptively(SHORT_TIMEOUT, () -> firstAnswer.get())));
+        Assertions.assertEquals(Collections.singletonList(secondResponse),
+                new ArrayList<>(Assertions.assertTimeoutPreemptively(SHORT_TIMEOUT, () -> secondAnswer.get())));
+        Assertions.assertEquals(1, Collections.frequency(received, sharedNS));
+
+        socket.close();
+        server.join();
+        zoneServer.shutdown();
+        service.close();
+    }
+
+    @Test
+    @DisplayName("iterativeQuery: queries are repeated without EDNS for servers that reject it")
+    public void testIterativeQueryEDNSFallback() throws Exception {
+        DNSQuestion question = new DNSQuestion("plain.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        ResourceRecord response = new ResourceRecord(question, TTL, InetAddress.getByName("123.45.67.94"));
+        InetAddress address = InetAddress.getByName("127.0.0.4");
+        List<Integer> additionalCounts = new ArrayList<>();
+        // A server that answers FORMERR to any query with an OPT record
+        DatagramSocket socket = new DatagramSocket(DNSLookupService.DEFAULT_DNS_PORT, address);
+        Thread server = new Thread(() -> {
+            try {
+                while (true) {
+                    AtomicReference<SocketAddress> sender = new AtomicReference<>();
+                    XDNSMessage request = LocalNameServer.receiveMessage(socket, sender);
+                    additionalCounts.add(request.getARCount());
+                    XDNSMessage reply = new XDNSMessage((short) request.getID());
+                    reply.setQR(true);
+                    reply.addQuestion(request.getQuestion());
+                    if (request.getARCount() > 0) {
+                        reply.setRcode(DNSMessage.FORMERR);
+                    } else {
+                        reply.setAA(true);
+                        reply.addResourceRecord(response, "answer");
+                    }
+                    LocalNameServer.sendMessage(reply, socket, sender.get());
+                }
+            } catch (IOException e) {
+                // Socket closed
+            }
+        });
+        server.start();
+        this.cache.reset(new String[] {"plainRootServer", address.getHostAddress()});
+
+        Collection<ResourceRecord> answer = Assertions.assertTimeoutPreemptively(SHORT_TIMEOUT,
+                () -> this.service.iterativeQuery(question));
+        Assertions.assertEquals(Collections.singletonList(response), new ArrayList<>(answer));
+        Assertions.assertFalse(service.getServerSelector().supportsEDNS(address));
+
+        socket.close();
+        server.join();
+        Assertions.assertEquals(Arrays.asList(1, 0), additionalCounts);
+        service.close();
+    }
+
     private void runIterativeQuery(DNSQuestion question) throws DNSLookupService.DNSErrorException {
         Assertions.assertTimeoutPreemptively(SHORT_TIMEOUT, () -> this.service.iterativeQuery(question));
     }